@@ -0,0 +1,63 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Builds the inputs shared by the hash benchmarks: a pool of bit balanced identifiers to encode
+ * and Bloom filters filled with the hashes of those identifiers to decode.
+ */
+class BenchmarkData {
+
+    static final int POPULATION_SIZE = BloomProductSearch.ONE_MILLION;
+
+    private BenchmarkData() {}
+
+    /**
+     * @return the number of bits in the balanced representation of POPULATION_SIZE identifiers
+     */
+    static int balancedRepSize() {
+        return BalanceGen.numberBitsInBalancedRep(POPULATION_SIZE);
+    }
+
+    /**
+     * @param required - the number of identifiers required (a power of two so callers can cycle with a mask)
+     * @return random bit balanced identifiers
+     */
+    static int[] identifiers(int required) {
+        int[] result = new int[required];
+        Iterator<Integer> generator = BalanceGen.getRandomIterator(POPULATION_SIZE);
+        for( int i = 0; i < required && generator.hasNext(); i++ ) {
+            result[i] = generator.next();
+        }
+        return result;
+    }
+
+    /**
+     * Adds the hashes of random balanced identifiers to a Bloom filter until set_bits bits are set (or the identifiers run out).
+     * @param hash_length - the length of the hashes in bits, the bloom is 2^hash_length bits wide
+     * @param set_bits - the number of bits required to be set in the filter
+     * @param hasher - a function that hashes an identifier
+     * @return the set bits in the resulting bloom filter
+     */
+    static List<Integer> fillBloom(int hash_length, int set_bits, IntFunction<List<Integer>> hasher) {
+        double width = Math.pow(2, hash_length);
+        Bloom bloom = new Bloom(width);
+        OpenBitSet bits = bloom.getBits();
+        int count = 0;
+
+        Iterator<Integer> generator = BalanceGen.getRandomIterator(POPULATION_SIZE);
+        while( count < set_bits && count < width && generator.hasNext() ) {
+            for( int hash : hasher.apply( generator.next() ) ) {
+                if( ! bits.get(hash) ) {
+                    bloom.addhash(hash);
+                    count++;
+                }
+            }
+        }
+        return Bloom.getSetBits(bits, width);
+    }
+}
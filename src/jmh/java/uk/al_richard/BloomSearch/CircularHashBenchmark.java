@@ -0,0 +1,118 @@
+package uk.al_richard.BloomSearch;
+
+import org.openjdk.jmh.annotations.*;
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for CircularHash.hash and CircularHash.reverseHashes.
+ *
+ * Throughput and latency percentiles (SampleTime) are reported for each parameter combination,
+ * run with -prof gc to also get the allocation rate per operation:
+ *
+ *      java -jar target/benchmarks.jar CircularHashBenchmark -prof gc
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class CircularHashBenchmark {
+
+    private static final int NUM_IDS = 1 << 12; // must be a power of 2
+    private static final int PARALLELISM_THRESHOLD = 1024;
+
+    @State(Scope.Thread)
+    public static class EncodeState {
+
+        @Param({"18", "20"})
+        public int hash_length;
+
+        @Param({"1", "2"})
+        public int overlap;
+
+        @Param({"6", "8"})
+        public int num_hashes;
+
+        CircularHash hash;
+        int[] ids;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new CircularHash(hash_length, overlap, num_hashes, BenchmarkData.balancedRepSize());
+            ids = BenchmarkData.identifiers(NUM_IDS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecodeState {
+
+        @Param({"18", "20"})
+        public int hash_length;
+
+        @Param({"1", "2"})
+        public int overlap;
+
+        @Param({"6", "8"})
+        public int num_hashes;
+
+        @Param({"1000", "10000", "50000"})
+        public int set_bits;                // the number of set bits fed to the decoder
+
+        CircularHash hash;
+        List<Integer> matching_indices;
+        int[] matching_array;
+        OpenBitSet matching_bits;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new CircularHash(hash_length, overlap, num_hashes, BenchmarkData.balancedRepSize());
+            matching_indices = BenchmarkData.fillBloom(hash_length, set_bits, hash::hash);
+            matching_array = matching_indices.stream().mapToInt(Integer::intValue).toArray();
+            matching_bits = new OpenBitSet(1 << hash_length);
+            for( int index : matching_array ) {
+                matching_bits.set(index);
+            }
+        }
+    }
+
+    @Benchmark
+    public List<Integer> encode(EncodeState state) {
+        return state.hash.hash( state.ids[ state.next++ & (NUM_IDS - 1) ] );
+    }
+
+    @Benchmark
+    public Set<Integer> decode(DecodeState state) {
+        return state.hash.reverseHashes( state.matching_indices );
+    }
+
+    @Benchmark
+    public int[] decodePrimitive(DecodeState state) {
+        return state.hash.reverseHashes( state.matching_array );
+    }
+
+    @Benchmark
+    public int[] decodeBits(DecodeState state) {
+        return state.hash.reverseHashes( state.matching_bits );
+    }
+
+    @Benchmark
+    public int[] decodeBalanced(DecodeState state) {
+        return state.hash.reverseBalancedHashes( state.matching_bits );
+    }
+
+    @Benchmark
+    public int[] decodeBalancedParallel(DecodeState state) {
+        return state.hash.reverseBalancedHashes( state.matching_bits, ForkJoinPool.commonPool(), PARALLELISM_THRESHOLD );
+    }
+
+    @Benchmark
+    public int decodeFirst(DecodeState state) {
+        return state.hash.streamBalancedHashes( state.matching_bits ).findFirst().orElse(-1);
+    }
+}
@@ -0,0 +1,82 @@
+package uk.al_richard.BloomSearch;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks for Hash.hash and Hash.reverseHashes.
+ *
+ * The number of hashes is implied by hash_length and overlap for this (non circular) hash.
+ * Run with -prof gc to also get the allocation rate per operation:
+ *
+ *      java -jar target/benchmarks.jar HashBenchmark -prof gc
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class HashBenchmark {
+
+    private static final int NUM_IDS = 1 << 12; // must be a power of 2
+
+    @State(Scope.Thread)
+    public static class EncodeState {
+
+        @Param({"10", "16"})
+        public int hash_length;
+
+        @Param({"2", "4"})
+        public int overlap;
+
+        Hash hash;
+        int[] ids;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new Hash(hash_length, overlap, BenchmarkData.balancedRepSize());
+            ids = BenchmarkData.identifiers(NUM_IDS);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecodeState {
+
+        @Param({"10", "16"})
+        public int hash_length;
+
+        @Param({"2", "4"})
+        public int overlap;
+
+        @Param({"20", "50", "100"})
+        public int set_bits;                // the number of set bits fed to the decoder - kept small, the decoder is super-linear
+
+        Hash hash;
+        List<Integer> matching_indices;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new Hash(hash_length, overlap, BenchmarkData.balancedRepSize());
+            matching_indices = BenchmarkData.fillBloom(hash_length, set_bits, hash::hash);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> encode(EncodeState state) {
+        return state.hash.hash( state.ids[ state.next++ & (NUM_IDS - 1) ] );
+    }
+
+    @Benchmark
+    public Set<Integer> decode(DecodeState state) {
+        return state.hash.reverseHashes( state.matching_indices );
+    }
+
+    @Benchmark
+    public Set<Integer> decodeIndexed(DecodeState state) {
+        return state.hash.reverseHashesIndexed( state.matching_indices );
+    }
+}
@@ -0,0 +1,88 @@
+package uk.al_richard.BloomSearch;
+
+import org.openjdk.jmh.annotations.*;
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * JMH benchmarks for LongCircularHash.hash and LongCircularHash.reverseBalancedHashes, with the same parameters and
+ * data as CircularHashBenchmark so the long paths can be compared with the int ones:
+ *
+ *      java -jar target/benchmarks.jar "CircularHashBenchmark.(encode|decodeBalanced)$" -prof gc
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class LongCircularHashBenchmark {
+
+    private static final int NUM_IDS = 1 << 12; // must be a power of 2
+
+    @State(Scope.Thread)
+    public static class EncodeState {
+
+        @Param({"18", "20"})
+        public int hash_length;
+
+        @Param({"1", "2"})
+        public int overlap;
+
+        @Param({"6", "8"})
+        public int num_hashes;
+
+        LongCircularHash hash;
+        long[] ids;
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new LongCircularHash(hash_length, overlap, num_hashes, BenchmarkData.balancedRepSize());
+            ids = IntStream.of( BenchmarkData.identifiers(NUM_IDS) ).asLongStream().toArray();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class DecodeState {
+
+        @Param({"18", "20"})
+        public int hash_length;
+
+        @Param({"1", "2"})
+        public int overlap;
+
+        @Param({"6", "8"})
+        public int num_hashes;
+
+        @Param({"1000", "10000", "50000"})
+        public int set_bits;                // the number of set bits fed to the decoder
+
+        LongCircularHash hash;
+        OpenBitSet matching_bits;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            hash = new LongCircularHash(hash_length, overlap, num_hashes, BenchmarkData.balancedRepSize());
+            List<Integer> matching_indices = BenchmarkData.fillBloom( hash_length, set_bits,
+                                                                      id -> IntStream.of( hash.hash(id) ).boxed().collect(Collectors.toList()) );
+            matching_bits = new OpenBitSet(1 << hash_length);
+            for( int index : matching_indices ) {
+                matching_bits.set(index);
+            }
+        }
+    }
+
+    @Benchmark
+    public int[] encode(EncodeState state) {
+        return state.hash.hash( state.ids[ state.next++ & (NUM_IDS - 1) ] );
+    }
+
+    @Benchmark
+    public long[] decodeBalanced(DecodeState state) {
+        return state.hash.reverseBalancedHashes( state.matching_bits );
+    }
+}
@@ -0,0 +1,81 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.Random;
+
+/**
+ * Checks the bit sliced OpenBitSet.atLeast against a count of the sets containing each bit, for every m from 1 to k and
+ * k from 1 to MAX_SETS (so up to four counter planes are used), on sets of different lengths and so different wordsInUse.
+ */
+public class AtLeastTest {
+
+    private static final int MAX_SETS = 12;
+    private static final int MAX_WIDTH = 1000;
+    private static final int TRIALS = 20;
+
+    public static void main(String[] args) {
+
+        Random rand = new Random(16180339);
+        int errors = 0;
+        int checked = 0;
+        for( int k = 1; k <= MAX_SETS; k++ ) {
+            for( int trial = 0; trial < TRIALS; trial++ ) {
+                OpenBitSet[] sets = new OpenBitSet[k];
+                for( int s = 0; s < k; s++ ) {
+                    sets[s] = randomBits(rand);
+                }
+                for( int m = 1; m <= k; m++ ) {
+                    OpenBitSet result = OpenBitSet.atLeast(m, sets);
+                    OpenBitSet expected = naiveAtLeast(m, sets);
+                    if( ! result.equals(expected) || result.cardinality() != expected.cardinality() ) {
+                        System.out.println( "Error atLeast(" + m + ") of " + k + " sets found " + result.cardinality() + " bits, expected " + expected.cardinality() );
+                        errors++;
+                    }
+                    if( m == k && ! result.equals( OpenBitSet.andAll(sets) ) ) {
+                        System.out.println( "Error atLeast(" + k + ") of " + k + " sets differs from andAll" );
+                        errors++;
+                    }
+                    checked++;
+                }
+            }
+        }
+
+        if( errors == 0 ) {
+            System.out.println( "atLeast agrees with counting the sets containing each bit in " + checked + " cases" );
+        } else {
+            throw new RuntimeException( errors + " errors in OpenBitSet.atLeast" );
+        }
+    }
+
+    /**
+     * @return a bit set of random length (sometimes empty) and density, so the sets ANDed have different wordsInUse
+     */
+    private static OpenBitSet randomBits(Random rand) {
+        int length = rand.nextInt(8) == 0 ? 0 : 1 + rand.nextInt(MAX_WIDTH);
+        double density = rand.nextDouble();
+        OpenBitSet bits = new OpenBitSet(MAX_WIDTH);
+        for( int bit = 0; bit < length; bit++ ) {
+            if( rand.nextDouble() < density ) {
+                bits.set(bit);
+            }
+        }
+        return bits;
+    }
+
+    private static OpenBitSet naiveAtLeast(int m, OpenBitSet[] sets) {
+        OpenBitSet result = new OpenBitSet(MAX_WIDTH);
+        for( int bit = 0; bit < MAX_WIDTH; bit++ ) {
+            int count = 0;
+            for( OpenBitSet set : sets ) {
+                if( set.get(bit) ) {
+                    count++;
+                }
+            }
+            if( count >= m ) {
+                result.set(bit);
+            }
+        }
+        return result;
+    }
+}
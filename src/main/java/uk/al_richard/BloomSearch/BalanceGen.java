@@ -12,6 +12,8 @@ public class BalanceGen {
     private static final int ONE_THOUSAND = 1000;
     private static final int ONE_MILLION = ONE_THOUSAND * ONE_THOUSAND;
 
+    private static final long DEFAULT_RANDOM_SEED = 98162435; // key mash for repeatability
+
     public BalanceGen() {}
 
     /**
@@ -20,15 +22,21 @@ public class BalanceGen {
      * @return an iterator which is guaranteed to be able to generate at least number_unique_bit_balanced_numbers_required of RANDOM unique bit balanced integers.
      */
     public static Iterator<Integer> getRandomIterator( int number_unique_bit_balanced_numbers_required ) {
-        List<Integer> list = new ArrayList<>();
+        return getRandomIterator( number_unique_bit_balanced_numbers_required, DEFAULT_RANDOM_SEED );
+    }
 
-        Iterator<Integer> iter = getIterator(number_unique_bit_balanced_numbers_required);
-        while( iter.hasNext() ) {
-            list.add( iter.next() );
-        }
+    /**
+     * The identifiers are produced by passing 0,1,2... through a keyed permutation of the ranks of the identifiers and
+     * unranking the result, so they are produced in a random but reproducible order using constant memory.
+     * @param number_unique_bit_balanced_numbers_required - the number of identifiers we need (expected to be governed by some dataset size).
+     * @param seed - determines the order in which the identifiers are produced
+     * @return an iterator which is guaranteed to be able to generate at least number_unique_bit_balanced_numbers_required of RANDOM unique bit balanced integers.
+     */
+    public static Iterator<Integer> getRandomIterator( int number_unique_bit_balanced_numbers_required, long seed ) {
 
-        Collections.shuffle(list);
-        return list.listIterator();
+        final int bits_required = numberBitsInBalancedRep( number_unique_bit_balanced_numbers_required );
+
+        return new RandomBalancedBitIterator(bits_required, seed);
     }
 
     /**
@@ -38,9 +46,8 @@ public class BalanceGen {
     public static Iterator<Integer> getIterator( int number_unique_bit_balanced_numbers_required ) {
 
         final int bits_required = numberBitsInBalancedRep( number_unique_bit_balanced_numbers_required );
-        final int bits = 1 << bits_required;
 
-        return new BalancedBitIterator(bits, bits_required);
+        return new BalancedBitIterator(bits_required);
     }
 
     /**
@@ -50,6 +57,10 @@ public class BalanceGen {
      */
     public static boolean bitsAreBalanced(int number, int bits_required)
     {
+        if( bits_required < Integer.SIZE ) {
+            return Integer.bitCount( number & ( ( 1 << bits_required ) - 1 ) ) * 2 == bits_required;
+        }
+
         int count_zeros = 0;
         int count_ones = 0;
 
@@ -64,7 +75,209 @@ public class BalanceGen {
         return count_zeros == count_ones;
     }
 
+    /*
+     * The identifiers of length bits_required are the numbers with the top bit (bits_required - 1) set and
+     * bits_required / 2 bits set in total. In ascending order they are ranked using the combinatorial number system:
+     * if the remaining ones are at positions c_1 < c_2 < ... < c_k the rank is the sum of choose(c_i, i).
+     */
 
+    /**
+     * @param bits_required - the length of the identifiers
+     * @return the number of bit balanced identifiers of length bits_required
+     */
+    public static long numberOfBalanced(int bits_required) {
+        checkLength(bits_required);
+        return choose(bits_required - 1, bits_required / 2 - 1);
+    }
+
+    /**
+     * @param id - an identifier
+     * @param bits_required - the length of the identifiers
+     * @return the position of id in the ascending sequence of bit balanced identifiers of length bits_required, -1 if id is not one of them
+     */
+    public static int rank(int id, int bits_required) {
+        checkLength(bits_required);
+        if( bits_required >= Integer.SIZE ) {
+            return -1;
+        }
+        return (int) rank( (long) id, bits_required );
+    }
+
+    /**
+     * @param id - a long identifier
+     * @param bits_required - the length of the identifiers (up to 62 bits)
+     * @return the position of id in the ascending sequence of bit balanced identifiers of length bits_required, -1 if id is not one of them
+     */
+    public static long rank(long id, int bits_required) {
+        checkLength(bits_required);
+        if( ( id >>> ( bits_required - 1 ) ) != 1 || Long.bitCount(id) * 2 != bits_required ) {
+            return -1;
+        }
+        long result = 0;
+        int ones = 0;
+        long rest = id & ~( 1L << ( bits_required - 1 ) );
+        while( rest != 0 ) {
+            int position = Long.numberOfTrailingZeros(rest);
+            result += choose(position, ++ones);
+            rest = rest & ( rest - 1 );
+        }
+        return result;
+    }
+
+    /**
+     * @param rank - a position in the ascending sequence of bit balanced identifiers of length bits_required
+     * @param bits_required - the length of the identifiers
+     * @return the identifier at that position, the inverse of rank(id,bits_required)
+     */
+    public static int unrank(int rank, int bits_required) {
+        if( bits_required >= Integer.SIZE ) {
+            throw new RuntimeException( "Balanced identifiers of length " + bits_required + " do not fit in an int" );
+        }
+        return (int) unrank( (long) rank, bits_required );
+    }
+
+    /**
+     * @param rank - a position in the ascending sequence of bit balanced identifiers of length bits_required
+     * @param bits_required - the length of the identifiers (up to 62 bits)
+     * @return the long identifier at that position, the inverse of rank(id,bits_required)
+     */
+    public static long unrank(long rank, int bits_required) {
+        checkLength(bits_required);
+        if( rank < 0 || rank >= numberOfBalanced(bits_required) ) {
+            throw new RuntimeException( "No balanced identifier of length " + bits_required + " with rank " + rank );
+        }
+        long result = 1L << ( bits_required - 1 );
+        long remainder = rank;
+        int position = bits_required - 2;
+        for( int ones = bits_required / 2 - 1; ones > 0; ones-- ) {
+            while( choose(position, ones) > remainder ) {
+                position--;
+            }
+            result = result | ( 1L << position );
+            remainder -= choose(position, ones);
+            position--;
+        }
+        return result;
+    }
+
+    /**
+     * @param number - a number
+     * @return the smallest number greater than number with the same number of bits set (Gosper's hack), number must be positive
+     */
+    public static long nextWithSameBitCount(long number) {
+        long lowest = number & -number;
+        long ripple = number + lowest;
+        return ( ( ( ripple ^ number ) >>> 2 ) / lowest ) | ripple;
+    }
+
+    private static void checkLength(int bits_required) {
+        if( bits_required < 2 || bits_required % 2 != 0 || bits_required >= BINOMIALS.length ) {
+            throw new RuntimeException( "Balanced identifiers must have an even length between 2 and " + ( BINOMIALS.length - 1 ) + " bits: " + bits_required );
+        }
+    }
+
+    private static final long[][] BINOMIALS = binomials( Long.SIZE - 1 );
+
+    private static long choose(int n, int k) {
+        return k > n ? 0 : BINOMIALS[n][k];
+    }
+
+    private static long[][] binomials(int max_n) {
+        long[][] result = new long[max_n + 1][];
+        for( int n = 0; n <= max_n; n++ ) {
+            result[n] = new long[n + 1];
+            result[n][0] = 1;
+            result[n][n] = 1;
+            for( int k = 1; k < n; k++ ) {
+                result[n][k] = result[n - 1][k - 1] + result[n - 1][k];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param number - a long number to be checked if bits are balanced
+     * @param bits_required
+     * @return true if the number of ones and zeros in the low bits_required bits of number are equal.
+     */
+    public static boolean bitsAreBalanced(long number, int bits_required) {
+        if( bits_required >= Long.SIZE ) {
+            return Long.bitCount(number) * 2 == Long.SIZE && bits_required == Long.SIZE;
+        }
+        return Long.bitCount( number & ( ( 1L << bits_required ) - 1 ) ) * 2 == bits_required;
+    }
+
+    /**
+     * Used in initialisation of populations too big for int identifiers
+     * @param number_unique_bit_balanced_numbers_required - the number of identifiers this code needs to be able to generate
+     * @return the number of bits we require to make all the generated long identifiers of the same length (at most 62)
+     */
+    public static int numberBitsInBalancedRepLong(long number_unique_bit_balanced_numbers_required) {
+        for( int i = 1; i + 4 < Long.SIZE - 1; i++ ) {
+            if( (1L << i) > number_unique_bit_balanced_numbers_required && i % 2 == 0 ) { // must have even number of bits
+                return i + 4; // +4 heuristic!
+            }
+        }
+        throw new RuntimeException( "Cannot satisfy requirement - number of results required too high");
+    }
+
+    /**
+     * @param number_unique_bit_balanced_numbers_required - the number of identifiers we need
+     * @return an iterator over at least number_unique_bit_balanced_numbers_required unique bit balanced longs in ascending order.
+     */
+    public static PrimitiveIterator.OfLong getLongIterator( long number_unique_bit_balanced_numbers_required ) {
+
+        final int bits_required = numberBitsInBalancedRepLong( number_unique_bit_balanced_numbers_required );
+
+        return new PrimitiveIterator.OfLong() {
+            private final long limit = 1L << bits_required;
+            private long seed = ( 1L << ( bits_required - 1 ) ) | ( ( 1L << ( bits_required / 2 - 1 ) ) - 1 );
+
+            @Override
+            public boolean hasNext() {
+                return seed < limit;
+            }
+
+            @Override
+            public long nextLong() {
+                if( ! hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                long result = seed;
+                seed = nextWithSameBitCount(seed);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * As getRandomIterator(int,long) but for populations too big for int identifiers.
+     * @param number_unique_bit_balanced_numbers_required - the number of identifiers we need
+     * @param seed - determines the order in which the identifiers are produced
+     * @return an iterator over at least number_unique_bit_balanced_numbers_required unique bit balanced longs in random order.
+     */
+    public static PrimitiveIterator.OfLong getRandomLongIterator( long number_unique_bit_balanced_numbers_required, long seed ) {
+
+        final int bits_required = numberBitsInBalancedRepLong( number_unique_bit_balanced_numbers_required );
+        final RankPermutation permutation = new RankPermutation( numberOfBalanced(bits_required), seed );
+
+        return new PrimitiveIterator.OfLong() {
+            private long count = 0;
+
+            @Override
+            public boolean hasNext() {
+                return count < permutation.size();
+            }
+
+            @Override
+            public long nextLong() {
+                if( ! hasNext() ) {
+                    throw new NoSuchElementException();
+                }
+                return unrank( permutation.permute( count++ ), bits_required );
+            }
+        };
+    }
 
     /**
      * Used in initialisation
@@ -98,46 +311,42 @@ public class BalanceGen {
 //        return numbers.stream().filter( num -> bitsAreBalanced( num, num_bits_in_data_source ) ).collect(Collectors.toSet()); // can't debug
     }
 
+    /**
+     * @param numbers - an array of integers
+     * @param num_bits_in_data_source
+     * @return a new array containing the balanced numbers in the same order, with the non balanced results removed
+     */
+    public static int[] filter(int[] numbers, int num_bits_in_data_source) {
+        int[] result = new int[numbers.length];
+        int count = 0;
+        for( int num : numbers ) {
+            if( bitsAreBalanced( num, num_bits_in_data_source ) ) {
+                result[count++] = num;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
     /**
      * An instance of this class is returned by getIterator()
      * The contract is that hasNext() must be called before next()
+     * The identifiers are generated in ascending order by stepping directly from one to the next with the same number of bits set.
      */
     private static class BalancedBitIterator implements Iterator<Integer> {
-        private final int bits_required;
-        int seed;
-        int result;
+        private final long limit;       // all the identifiers are less than this
+        long seed;
         boolean consumed = false;
 
-        public BalancedBitIterator(int bits, int bits_required) {
-            this.bits_required = bits_required;
-            seed = 1;
-            result = 0;
-            // move the seed up to the required number of bits.
-            for (int number = seed; number <= bits; number++) {
-                int len = Integer.toBinaryString(number).length();
-                if( len >= bits_required ) {
-                    seed = number;
-                    break;
-                }
-            }
-        //    System.out.println( "Initialised seed = " + seed + " len " + Integer.toBinaryString(seed).length());
+        public BalancedBitIterator(int bits_required) {
+            this.limit = 1L << bits_required;
+            // the smallest identifier: the top bit and the lowest bits_required / 2 - 1 bits set.
+            this.seed = ( 1L << ( bits_required - 1 ) ) | ( ( 1L << ( bits_required / 2 - 1 ) ) - 1 );
         }
 
         @Override
         public boolean hasNext() {
-
-            while( true ) {
-                if ( bitsAreBalanced( seed,bits_required ) ) {
-                    if ( Integer.toBinaryString(seed).length() == bits_required ) { // if we have not run out of bits (normal case).
-                        consumed = false;
-                        return true;
-                    } else {                //  We have run out of bits - all strings must be of the same length
-                        consumed = false;
-                        return false;
-                    }
-                }
-                seed = seed + 1;
-            }
+            consumed = false;
+            return seed < limit; // if we have not run out of bits (normal case) - all strings must be of the same length
         }
 
         @Override
@@ -145,13 +354,100 @@ public class BalanceGen {
             if( consumed ) {
                 throw new RuntimeException( "hasNext() has not been called before requesting next()");
             }
-            int result = seed;
-            seed = seed + 1;  // ensure we don't use this seed again.
+            if( seed >= limit ) {
+                throw new NoSuchElementException();
+            }
+            int result = (int) seed;
+            seed = nextWithSameBitCount(seed);  // ensure we don't use this seed again.
             consumed = true;
             return result;
         }
     }
 
+    /**
+     * An instance of this class is returned by getRandomIterator()
+     * It walks through the ranks 0..n-1 of the identifiers in the order given by a RankPermutation.
+     */
+    private static class RandomBalancedBitIterator implements Iterator<Integer> {
+
+        private final int bits_required;
+        private final RankPermutation permutation;
+        private long count = 0;
+
+        public RandomBalancedBitIterator(int bits_required, long seed) {
+            this.bits_required = bits_required;
+            this.permutation = new RankPermutation( numberOfBalanced(bits_required), seed );
+        }
+
+        @Override
+        public boolean hasNext() {
+            return count < permutation.size();
+        }
+
+        @Override
+        public Integer next() {
+            if( ! hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return unrank( (int) permutation.permute( count++ ), bits_required );
+        }
+    }
+
+    /**
+     * A keyed permutation of 0..size-1: a Feistel network over the smallest even number of bits that can hold size,
+     * re-applied to any result that is size or more (cycle walking).
+     * Since the domain is less than 4 * size each value takes a few rounds on average and no state is kept.
+     */
+    private static class RankPermutation {
+        private static final int ROUNDS = 4;
+
+        private final long size;
+        private final int half_bits;
+        private final long half_mask;
+        private final long[] keys = new long[ROUNDS];
+
+        RankPermutation(long size, long seed) {
+            this.size = size;
+
+            int domain_bits = Long.SIZE - Long.numberOfLeadingZeros(size - 1);
+            this.half_bits = Math.max(1, ( domain_bits + 1 ) / 2);
+            this.half_mask = ( 1L << half_bits ) - 1;
+
+            Random random = new Random(seed);
+            for( int i = 0; i < ROUNDS; i++ ) {
+                keys[i] = random.nextLong();
+            }
+        }
+
+        long size() {
+            return size;
+        }
+
+        long permute(long value) {
+            do {
+                value = feistel(value);
+            } while( value >= size );
+            return value;
+        }
+
+        private long feistel(long value) {
+            long left = value >>> half_bits;
+            long right = value & half_mask;
+            for( int i = 0; i < ROUNDS; i++ ) {
+                long next_right = left ^ ( mix( right ^ keys[i] ) & half_mask );
+                left = right;
+                right = next_right;
+            }
+            return ( left << half_bits ) | right;
+        }
+
+        private static long mix(long z) { // the SplitMix64 finaliser
+            z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+            z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+            return z ^ ( z >>> 31 );
+        }
+    }
+
     /**
      * This main is for demo purposes only
      * @param args - this is unused in this context
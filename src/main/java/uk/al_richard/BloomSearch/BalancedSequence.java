@@ -22,17 +22,8 @@ public class BalancedSequence {
     }
 
     public static boolean isBalanced(int number) {
-        String binary = Integer.toBinaryString(number);
-        int ones = 0;
-        int zeroes = 0;
-        for (char c : binary.toCharArray()) {
-            if (c == '1') {
-                ones++;
-            } else {
-                zeroes++;
-            }
-        }
-        return ones == zeroes;
+        int length = number == 0 ? 1 : Integer.SIZE - Integer.numberOfLeadingZeros(number); // the length of Integer.toBinaryString(number)
+        return Integer.bitCount(number) * 2 == length;
     }
 
     public static void main(String[] args) {
@@ -22,6 +22,18 @@ public class Bloom {
         this.bitrep = new OpenBitSet((int) width);
     }
 
+    /**
+     * Creates a Bloom filter with a width of width bits holding the given words (e.g. read from a snapshot).
+     * @param width - the width of the bloom filter in bits
+     * @param words - the words of the filter, as in getBits().getBits()
+     * @param length - the number of words to use from words, the rest of the filter is zero
+     */
+    Bloom(double width, long[] words, int length) {
+        this(width);
+        System.arraycopy(words, 0, bitrep.getBits(), 0, length);
+        bitrep.wordsUpdated();
+    }
+
     /**
      * Adds the hash to this Bloom filter object
      * @param hash - the bit pattern to add to the filter.
@@ -49,6 +61,14 @@ public class Bloom {
         return result;
     }
 
+    /**
+     * @param bits - the bitset from which the set bits are required
+     * @return the indices of the set bits in ascending order
+     */
+    public static int[] getSetBitArray(OpenBitSet bits) {
+        return OpenBitSet.andAllSetBits(bits);
+    }
+
     /**
      * @param bits - the bitset for which a representation is required
      * @return a hex representation of the bloom filter
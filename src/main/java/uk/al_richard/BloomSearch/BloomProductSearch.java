@@ -78,7 +78,7 @@ public class BloomProductSearch {
 
 		Set<Integer>  legal_results = new TreeSet<>();
 		for( Integer result : results ) {
-			if( dat.contains(result) ) { legal_results.add(result); } // some of these are not legal ids
+			if( map.isData(result) ) { legal_results.add(result); } // some of these are not legal ids
 		}
 
 		System.out.println( "Of those " + legal_results.size() + " are legal in the final query solution" );
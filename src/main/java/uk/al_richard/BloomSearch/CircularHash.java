@@ -1,15 +1,20 @@
 package uk.al_richard.BloomSearch;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class splits a number into n hashes of m bits with a p bit overlap.
  */
 public class CircularHash {
 
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
     private final int SOLN_BITS;
     private final int OVERLAPPING_BITS;
     private final int NON_OVERLAPPING_BITS;
@@ -19,6 +24,9 @@ public class CircularHash {
     private final int num_bits_in_input;
     private final int num_hashes;
 
+    // Scratch frontiers used by the primitive decoder, one pair per thread so that decoding allocates almost nothing.
+    private final ThreadLocal<int[][]> decode_buffers = ThreadLocal.withInitial( () -> new int[][]{ new int[INITIAL_BUFFER_SIZE], new int[INITIAL_BUFFER_SIZE] } );
+
     /**
      * @param hash_length - how long the hash is required to be
      * @param overlap - each hash is overlapped by this amount
@@ -145,6 +153,427 @@ public class CircularHash {
         return trimToLength( potential_solns );
     }
 
+    /**
+     * A primitive version of reverseHashes(List) which works on sorted int frontiers held in reusable scratch buffers.
+     * The result is the same set of numbers as reverseHashes(List) returns.
+     * @param hashes - a set of hashes in ascending order with no duplicates, each less than 2^hash_length (e.g. the set bits of a Bloom filter)
+     * @return the possible records that created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseHashes(int[] hashes) {
+        checkHashes(hashes);
+        return decode(hashes, null, false);
+    }
+
+    /**
+     * As reverseHashes(int[]) but decodes directly from the set bits of a bitset (e.g. the AND of some Bloom filters).
+     * The successors of a partial solution occupy the bit range [tail << overlap, (tail+1) << overlap) so each
+     * extension is found with nextSetBit within that range and no list of set bits is materialised.
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return the possible records that created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseHashes(OpenBitSet bits) {
+        checkBits(bits);
+        return decode(null, bits, false);
+    }
+
+    /**
+     * Equivalent to BalanceGen.filter( reverseHashes(hashes), num_bits_in_input ) but partial solutions are dropped
+     * as soon as they can no longer end up with equal numbers of ones and zeros, keeping the frontiers small.
+     * @param hashes - a set of hashes in ascending order with no duplicates, each less than 2^hash_length
+     * @return the bit balanced records that could have created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseBalancedHashes(int[] hashes) {
+        checkHashes(hashes);
+        return decode(hashes, null, true);
+    }
+
+    /**
+     * As reverseBalancedHashes(int[]) but decodes directly from the set bits of a bitset (see reverseHashes(OpenBitSet)).
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return the bit balanced records that could have created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseBalancedHashes(OpenBitSet bits) {
+        checkBits(bits);
+        return decode(null, bits, true);
+    }
+
+    /**
+     * A lazy version of reverseBalancedHashes(OpenBitSet): the chains are followed depth first and each bit balanced
+     * record is produced as soon as its chain is complete, so decoding stops as soon as the stream is no longer consumed
+     * (e.g. after limit(n) or findFirst()). The records already produced are remembered in a bitset over the id space.
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return a stream of the distinct bit balanced records that could have created the hashes (including false positives), unordered.
+     */
+    public IntStream streamBalancedHashes(OpenBitSet bits) {
+        return StreamSupport.intStream(
+                Spliterators.spliteratorUnknownSize(balancedHashIterator(bits), Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
+
+    /**
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return an iterator over the records produced by streamBalancedHashes(bits) - abandoning it cancels the decoding.
+     */
+    public PrimitiveIterator.OfInt balancedHashIterator(OpenBitSet bits) {
+        checkBits(bits);
+        return new ChainIterator(bits);
+    }
+
+    /**
+     * Follows the chains in a bitset depth first - solns[d] is the partial solution after d extensions and
+     * cursors[d] is the next bit which might extend it.
+     */
+    private class ChainIterator implements PrimitiveIterator.OfInt {
+
+        private final OpenBitSet bits;
+        private final OpenBitSet returned = new OpenBitSet();   // the records already returned
+        private final int[] solns = new int[num_hashes];
+        private final int[] cursors = new int[num_hashes];
+        private int depth = -1;                                 // -1 means the next chain starts from the next set bit
+        private int next_start = 0;
+
+        private boolean found = false;                          // true if next holds a record not yet returned
+        private int next;
+
+        ChainIterator(OpenBitSet bits) {
+            this.bits = bits;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!found) {
+                if (depth < 0) {
+                    int hash = bits.nextSetBit(next_start);
+                    if (hash < 0) {
+                        return false;
+                    }
+                    next_start = hash + 1;
+                    if (canBalance(hash, num_hashes - 1)) {
+                        push(hash);
+                    }
+                } else if (depth == num_hashes - 1) { // the chain is complete
+                    int trimmed = solns[depth--] & SOLN_BITS;
+                    if (BalanceGen.bitsAreBalanced(trimmed, num_bits_in_input) && !returned.get(trimmed)) {
+                        returned.set(trimmed);
+                        next = trimmed;
+                        found = true;
+                    }
+                } else {
+                    int potential_soln = solns[depth];
+                    int hash = bits.nextSetBit(cursors[depth]);
+                    if (hash < 0 || hash >= (tail(potential_soln) + 1) << overlap) { // no more successors
+                        depth--;
+                    } else {
+                        cursors[depth] = hash + 1;
+                        int extended = extend(potential_soln, hash);
+                        if (canBalance(extended, num_hashes - 2 - depth)) {
+                            push(extended);
+                        }
+                    }
+                }
+            }
+            return true;
+        }
+
+        private void push(int potential_soln) {
+            depth++;
+            solns[depth] = potential_soln;
+            cursors[depth] = tail(potential_soln) << overlap;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            found = false;
+            return next;
+        }
+    }
+
+    /**
+     * As reverseHashes(OpenBitSet) but the chains starting from different hashes are decoded in parallel.
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @param pool - the pool in which to perform the decoding
+     * @param parallelism_threshold - the number of starting hashes at or below which decoding is performed sequentially
+     * @return the possible records that created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseHashes(OpenBitSet bits, ForkJoinPool pool, int parallelism_threshold) {
+        return decodeInParallel(bits, false, pool, parallelism_threshold);
+    }
+
+    /**
+     * As reverseBalancedHashes(OpenBitSet) but the chains starting from different hashes are decoded in parallel.
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @param pool - the pool in which to perform the decoding
+     * @param parallelism_threshold - the number of starting hashes at or below which decoding is performed sequentially
+     * @return the bit balanced records that could have created the hashes (including false positives) in ascending order.
+     */
+    public int[] reverseBalancedHashes(OpenBitSet bits, ForkJoinPool pool, int parallelism_threshold) {
+        return decodeInParallel(bits, true, pool, parallelism_threshold);
+    }
+
+    private int[] decodeInParallel(OpenBitSet bits, boolean balanced_only, ForkJoinPool pool, int parallelism_threshold) {
+        checkBits(bits);
+        if (parallelism_threshold < 1) {
+            throw new RuntimeException("Parallelism threshold must be at least 1: " + parallelism_threshold);
+        }
+        if (bits.cardinality() <= parallelism_threshold) {
+            return decode(null, bits, balanced_only);
+        }
+        int[] starts = Bloom.getSetBitArray(bits);
+        return pool.invoke(new DecodeTask(bits, balanced_only, starts, 0, starts.length, parallelism_threshold));
+    }
+
+    /**
+     * Decodes the chains starting from starts[from..to) - the chains from different starting hashes are independent
+     * so the range is split until it is no bigger than the threshold and the sorted results merged.
+     */
+    private class DecodeTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+        private final OpenBitSet bits;
+        private final boolean balanced_only;
+        private final int[] starts;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        DecodeTask(OpenBitSet bits, boolean balanced_only, int[] starts, int from, int to, int threshold) {
+            this.bits = bits;
+            this.balanced_only = balanced_only;
+            this.starts = starts;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from <= threshold) {
+                return decode(null, bits, balanced_only, starts, from, to);
+            }
+            int mid = (from + to) >>> 1;
+            DecodeTask left = new DecodeTask(bits, balanced_only, starts, from, mid, threshold);
+            left.fork();
+            int[] right = new DecodeTask(bits, balanced_only, starts, mid, to, threshold).compute();
+            return mergeUnique(left.join(), right);
+        }
+    }
+
+    /**
+     * @param a - an ascending array with no duplicates
+     * @param b - an ascending array with no duplicates
+     * @return the ascending union of a and b with no duplicates
+     */
+    private static int[] mergeUnique(int[] a, int[] b) {
+        int[] result = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                result[size++] = a[i++];
+            } else if (a[i] > b[j]) {
+                result[size++] = b[j++];
+            } else {
+                result[size++] = a[i++];
+                j++;
+            }
+        }
+        while (i < a.length) {
+            result[size++] = a[i++];
+        }
+        while (j < b.length) {
+            result[size++] = b[j++];
+        }
+        return size == result.length ? result : Arrays.copyOf(result, size);
+    }
+
+    private int[] decode(int[] hashes, OpenBitSet bits, boolean balanced_only) {
+        return decode(hashes, bits, balanced_only, null, 0, 0);
+    }
+
+    /**
+     * The decoder used by reverseHashes and reverseBalancedHashes - exactly one of hashes and bits is non null.
+     * @param balanced_only - if true partial solutions that cannot become bit balanced are pruned and only balanced records returned
+     * @param starts - if non null only the chains starting from the hashes in starts[starts_from..starts_to) are decoded, otherwise chains start from every hash
+     */
+    private int[] decode(int[] hashes, OpenBitSet bits, boolean balanced_only, int[] starts, int starts_from, int starts_to) {
+
+        int[][] buffers = decode_buffers.get();
+        int[] frontier;
+        int frontier_size = 0;
+
+        // 1. Put the hashes into the frontier
+
+        int remaining = num_hashes - 1; // the number of extensions still to be made to the solutions in the frontier
+
+        if (starts != null) {
+            frontier = ensureCapacity(buffers, 0, starts_to - starts_from);
+            for (int i = starts_from; i < starts_to; i++) {
+                if (!balanced_only || canBalance(starts[i], remaining)) {
+                    frontier[frontier_size++] = starts[i];
+                }
+            }
+        } else if (hashes != null) {
+            frontier = ensureCapacity(buffers, 0, hashes.length);
+            for (int hash : hashes) {
+                if (!balanced_only || canBalance(hash, remaining)) {
+                    frontier[frontier_size++] = hash;
+                }
+            }
+        } else {
+            frontier = ensureCapacity(buffers, 0, bits.cardinality());
+            for (int hash = bits.nextSetBit(0); hash >= 0; hash = bits.nextSetBit(hash + 1)) {
+                if (!balanced_only || canBalance(hash, remaining)) {
+                    frontier[frontier_size++] = hash;
+                }
+            }
+        }
+
+        // repeat num_hashes -1 times: extend each potential solution with the hashes whose head matches its tail.
+        // Since head(hash) is the high bits of the hash, those hashes are a contiguous range of the sorted hashes (or bits).
+
+        while (remaining > 0 && frontier_size > 0) {
+            remaining--;
+            int[] next = buffers[1];
+            int next_size = 0;
+
+            for (int i = 0; i < frontier_size; i++) {
+                int potential_soln = frontier[i];
+                int tail = tail(potential_soln);
+                if (hashes != null) {
+                    int to = lowerBound(hashes, (tail + 1) << overlap);
+                    for (int j = lowerBound(hashes, tail << overlap); j < to; j++) {
+                        int extended = extend(potential_soln, hashes[j]);
+                        if (!balanced_only || canBalance(extended, remaining)) {
+                            if (next_size == next.length) {
+                                next = grow(buffers, 1);
+                            }
+                            next[next_size++] = extended;
+                        }
+                    }
+                } else {
+                    int to = (tail + 1) << overlap;
+                    for (int hash = bits.nextSetBit(tail << overlap); hash >= 0 && hash < to; hash = bits.nextSetBit(hash + 1)) {
+                        int extended = extend(potential_soln, hash);
+                        if (!balanced_only || canBalance(extended, remaining)) {
+                            if (next_size == next.length) {
+                                next = grow(buffers, 1);
+                            }
+                            next[next_size++] = extended;
+                        }
+                    }
+                }
+            }
+            if (!isAscending(next, next_size)) { // only happens if extending has shifted bits off the top of the int
+                next_size = sortUnique(next, next_size);
+            }
+            buffers[1] = frontier;
+            buffers[0] = next;
+            frontier = next;
+            frontier_size = next_size;
+        }
+
+        int trimmed_size = 0;
+        for (int i = 0; i < frontier_size; i++) {
+            int trimmed = frontier[i] & SOLN_BITS;
+            if (!balanced_only || BalanceGen.bitsAreBalanced(trimmed, num_bits_in_input)) {
+                frontier[trimmed_size++] = trimmed;
+            }
+        }
+        return Arrays.copyOf(frontier, sortUnique(frontier, trimmed_size));
+    }
+
+    /**
+     * After the remaining extensions the low num_bits_in_input bits of a solution (which are kept when it is trimmed) are
+     * the low num_bits_in_input - remaining * overlap bits of partial_soln followed by remaining * overlap bits still to come.
+     * @param partial_soln - a partial solution
+     * @param remaining - the number of extensions still to be made to partial_soln
+     * @return false if partial_soln can no longer be extended into a solution with equal numbers of ones and zeros
+     */
+    private boolean canBalance(int partial_soln, int remaining) {
+        int bits_to_come = remaining * overlap;
+        int kept_bits = num_bits_in_input - bits_to_come;
+        if (kept_bits <= 0 || num_bits_in_input >= Integer.SIZE) {
+            return true;
+        }
+        int ones = Integer.bitCount(partial_soln & ((1 << kept_bits) - 1));
+        int ones_required = num_bits_in_input / 2;
+        return ones <= ones_required && ones + bits_to_come >= ones_required;
+    }
+
+    private void checkBits(OpenBitSet bits) {
+        if (bits.length() > 1 << hash_length) {
+            throw new RuntimeException("Bits must be less than 2^" + hash_length + " found: " + (bits.length() - 1));
+        }
+    }
+
+    private void checkHashes(int[] hashes) {
+        int limit = 1 << hash_length;
+        for (int i = 0; i < hashes.length; i++) {
+            if (hashes[i] < 0 || hashes[i] >= limit || (i > 0 && hashes[i] <= hashes[i - 1])) {
+                throw new RuntimeException("Hashes must be ascending, unique and less than 2^" + hash_length + " found: " + hashes[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the index of the first element of sorted that is >= key (sorted.length if there is none)
+     */
+    private static int lowerBound(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isAscending(int[] numbers, int size) {
+        for (int i = 1; i < size; i++) {
+            if (numbers[i] <= numbers[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the first size elements of numbers and removes duplicates
+     * @return the number of unique elements now at the start of numbers
+     */
+    private static int sortUnique(int[] numbers, int size) {
+        if (size == 0) {
+            return 0;
+        }
+        Arrays.sort(numbers, 0, size);
+        int unique = 1;
+        for (int i = 1; i < size; i++) {
+            if (numbers[i] != numbers[unique - 1]) {
+                numbers[unique++] = numbers[i];
+            }
+        }
+        return unique;
+    }
+
+    private static int[] ensureCapacity(int[][] buffers, int which, int capacity) {
+        if (buffers[which].length < capacity) {
+            buffers[which] = new int[Math.max(capacity, buffers[which].length * 2)];
+        }
+        return buffers[which];
+    }
+
+    private static int[] grow(int[][] buffers, int which) {
+        buffers[which] = Arrays.copyOf(buffers[which], buffers[which].length * 2);
+        return buffers[which];
+    }
+
     private Set<Integer> trimToLength(Set<Integer> potential_solns) {
         Set<Integer> result = new TreeSet<>();
         for( int i : potential_solns ) {
@@ -0,0 +1,168 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.CompressedBitSet;
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.PrimitiveIterator;
+import java.util.Random;
+
+/**
+ * Checks CompressedBitSet against OpenBitSet on random bit sets.
+ * Each chunk of 2^16 bits of a set is left empty or filled sparsely, densely or with a few long runs, so the sets
+ * are held in a mixture of array, bitmap and run containers and the ANDs intersect every pair of container kinds.
+ */
+public class CompressedBitSetTest {
+
+    private static final int CHUNK = 1 << 16;
+    private static final int CHUNKS = 8;
+    private static final int WIDTH = CHUNKS * CHUNK;
+    private static final int NUMBER_OF_SETS = 200;
+    private static final int MAX_SETS_ANDED = 4;
+
+    private static final Random rand = new Random(27182818);
+    private static int errors = 0;
+
+    public static void main(String[] args) {
+
+        for( int i = 0; i < NUMBER_OF_SETS; i++ ) {
+            OpenBitSet bits = randomBits();
+            check( "valueOf", CompressedBitSet.valueOf(bits), bits );
+        }
+
+        for( int i = 0; i < NUMBER_OF_SETS; i++ ) {
+            int number_anded = 1 + rand.nextInt(MAX_SETS_ANDED);
+            OpenBitSet[] bits = new OpenBitSet[number_anded];
+            CompressedBitSet[] compressed = new CompressedBitSet[number_anded];
+            for( int k = 0; k < number_anded; k++ ) {
+                bits[k] = randomBits();
+                compressed[k] = CompressedBitSet.valueOf( bits[k] );
+            }
+            check( "and of " + number_anded, CompressedBitSet.and(compressed), OpenBitSet.andAll(bits) );
+        }
+
+        OpenBitSet sparse = new OpenBitSet(WIDTH);
+        for( int chunk = 0; chunk < CHUNKS; chunk++ ) {
+            fillSparse( sparse, chunk * CHUNK );
+        }
+        if( CompressedBitSet.valueOf(sparse).sizeInBytes() >= sparse.size() / 8 ) {
+            System.out.println( "Error sparse bit set not compressed: " + CompressedBitSet.valueOf(sparse).sizeInBytes() + " bytes" );
+            errors++;
+        }
+
+        if( errors == 0 ) {
+            System.out.println( "CompressedBitSet agrees with OpenBitSet on " + ( 2 * NUMBER_OF_SETS ) + " bit sets" );
+        } else {
+            throw new RuntimeException( errors + " errors in CompressedBitSet" );
+        }
+    }
+
+    /**
+     * @return a bit set in which each chunk is empty or is filled sparsely, densely or with runs, chosen at random
+     */
+    private static OpenBitSet randomBits() {
+        OpenBitSet bits = new OpenBitSet(WIDTH);
+        for( int chunk = 0; chunk < CHUNKS; chunk++ ) {
+            int base = chunk * CHUNK;
+            switch( rand.nextInt(4) ) {
+                case 0:
+                    break;
+                case 1:
+                    fillSparse(bits, base);
+                    break;
+                case 2:
+                    fillDense(bits, base);
+                    break;
+                default:
+                    fillRuns(bits, base);
+            }
+        }
+        return bits;
+    }
+
+    /**
+     * Sets a few bits of the chunk at base, including its first and last, which are held in an array container.
+     */
+    private static void fillSparse(OpenBitSet bits, int base) {
+        bits.set(base);
+        bits.set(base + CHUNK - 1);
+        for( int i = rand.nextInt(1000); i > 0; i-- ) {
+            bits.set( base + rand.nextInt(CHUNK) );
+        }
+    }
+
+    /**
+     * Sets about half of the bits of the chunk at base at random, which are held in a bitmap container.
+     */
+    private static void fillDense(OpenBitSet bits, int base) {
+        for( int i = 0; i < CHUNK; i++ ) {
+            if( rand.nextBoolean() ) {
+                bits.set( base + i );
+            }
+        }
+    }
+
+    /**
+     * Sets a few long runs of bits in the chunk at base, sometimes reaching its ends, which are held in a run container.
+     */
+    private static void fillRuns(OpenBitSet bits, int base) {
+        for( int i = 1 + rand.nextInt(10); i > 0; i-- ) {
+            int from = rand.nextInt(CHUNK);
+            int to = Math.min( CHUNK, from + 1 + rand.nextInt(8000) );
+            bits.set( base + from, base + to );
+        }
+        if( rand.nextBoolean() ) {
+            bits.set( base, base + 1 + rand.nextInt(500) );
+        }
+        if( rand.nextBoolean() ) {
+            bits.set( base + CHUNK - 1 - rand.nextInt(500), base + CHUNK );
+        }
+    }
+
+    /**
+     * Compares compressed with expected - its bits, cardinality, get and nextSetBit on either side of each chunk
+     * boundary and at random, and its iterator.
+     */
+    private static void check(String name, CompressedBitSet compressed, OpenBitSet expected) {
+        if( ! compressed.toOpenBitSet(WIDTH).equals(expected) ) {
+            error( name, "bits differ" );
+        }
+        if( compressed.cardinality() != expected.cardinality() ) {
+            error( name, "cardinality " + compressed.cardinality() + " expected " + expected.cardinality() );
+        }
+        for( int chunk = 0; chunk <= CHUNKS; chunk++ ) {
+            for( int offset = -2; offset <= 1; offset++ ) {
+                checkIndex( name, compressed, expected, chunk * CHUNK + offset );
+            }
+        }
+        for( int i = 0; i < 1000; i++ ) {
+            checkIndex( name, compressed, expected, rand.nextInt(WIDTH) );
+        }
+        PrimitiveIterator.OfInt iterator = compressed.iterator();
+        for( int bit = expected.nextSetBit(0); bit >= 0; bit = expected.nextSetBit(bit + 1) ) {
+            if( ! iterator.hasNext() || iterator.nextInt() != bit ) {
+                error( name, "iterator missed bit " + bit );
+                return;
+            }
+        }
+        if( iterator.hasNext() ) {
+            error( name, "iterator returned extra bit " + iterator.nextInt() );
+        }
+    }
+
+    private static void checkIndex(String name, CompressedBitSet compressed, OpenBitSet expected, int index) {
+        if( index < 0 ) {
+            return;
+        }
+        if( index < WIDTH && compressed.get(index) != expected.get(index) ) {
+            error( name, "get(" + index + ") is " + compressed.get(index) );
+        }
+        if( compressed.nextSetBit(index) != expected.nextSetBit(index) ) {
+            error( name, "nextSetBit(" + index + ") is " + compressed.nextSetBit(index) + " expected " + expected.nextSetBit(index) );
+        }
+    }
+
+    private static void error(String name, String message) {
+        System.out.println( "Error " + name + ": " + message );
+        errors++;
+    }
+}
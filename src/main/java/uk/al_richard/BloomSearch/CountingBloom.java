@@ -0,0 +1,110 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+/**
+ * A counting Bloom filter: each bit has a 4 bit counter, packed 16 to a long, of the number of hashes added to it,
+ * so hashes may be removed as well as added.
+ * The bits which have a non zero count are held in an OpenBitSet, kept up to date as hashes are added and removed,
+ * which can be used wherever the bits of a Bloom are.
+ * A counter which reaches 15 sticks there - removing a hash from it never clears the bit, which might otherwise
+ * remove other hashes which share it.
+ */
+public class CountingBloom {
+
+    private static final int BITS_PER_COUNTER = 4;
+    private static final int COUNTERS_PER_WORD = Long.SIZE / BITS_PER_COUNTER;
+    private static final long MAX_COUNT = ( 1L << BITS_PER_COUNTER ) - 1;
+
+    private final long[] counters;
+    private final OpenBitSet bitrep;                                    // bit i is set iff counter i is non zero
+    private int cardinality = 0;                                        // the number of bits set in bitrep
+    private final double width;
+
+    /**
+     * Creates a counting Bloom filter with a width of width bits.
+     * @param width - the width of the bloom filter in bits
+     */
+    public CountingBloom(double width) {
+        this.width = width;
+        if( width > Integer.MAX_VALUE ) {
+            throw new RuntimeException( "Cannot create a bloom filter with width " + width );
+        }
+        this.bitrep = new OpenBitSet((int) width);
+        this.counters = new long[ (int) ( ( (long) width + COUNTERS_PER_WORD - 1 ) / COUNTERS_PER_WORD ) ];
+    }
+
+    /**
+     * Adds the hash to this Bloom filter object
+     * @param hash - the bit pattern to add to the filter.
+     */
+    public void addhash(int hash) {
+        long count = count(hash);
+        if( count < MAX_COUNT ) {
+            counters[hash / COUNTERS_PER_WORD] += 1L << shift(hash);
+            if( count == 0 ) {
+                bitrep.set(hash);
+                cardinality++;
+            }
+        }
+    }
+
+    /**
+     * Removes a hash previously added by addhash from this Bloom filter object
+     * @param hash - the bit pattern to remove from the filter.
+     */
+    public void removehash(int hash) {
+        long count = count(hash);
+        if( count == 0 ) {
+            throw new RuntimeException( "Cannot remove hash " + hash + " which is not in the filter" );
+        }
+        if( count < MAX_COUNT ) {                                       // a saturated counter may hide other hashes
+            counters[hash / COUNTERS_PER_WORD] -= 1L << shift(hash);
+            if( count == 1 ) {
+                bitrep.clear(hash);
+                cardinality--;
+            }
+        }
+    }
+
+    /**
+     * @param hash - a bit of the filter
+     * @return the number of hashes added to that bit (at most 15)
+     */
+    public int count(int hash) {
+        if( hash < 0 || hash >= width ) {
+            throw new RuntimeException( "Hash " + hash + " is outside a bloom filter of width " + width );
+        }
+        return (int) ( ( counters[hash / COUNTERS_PER_WORD] >>> shift(hash) ) & MAX_COUNT );
+    }
+
+    /**
+     * @return the bits of the filter which have a non zero count - this is updated as hashes are added and removed
+     */
+    public OpenBitSet getBits() { return bitrep; }
+
+    public OpenBitSet getBitsCopy() { return (OpenBitSet) bitrep.clone(); }
+
+    /**
+     * @return the number of bits set in getBits(), without counting them
+     */
+    public int cardinality() { return cardinality; }
+
+    /**
+     * @return the number of bytes used by the counters and the bits
+     */
+    public long sizeInBytes() {
+        return (long) counters.length * Long.BYTES + bitrep.size() / 8;
+    }
+
+    /**
+     * Returns a hex representation of the bloom filter
+     */
+    public String toString() {
+        return Bloom.showBits( bitrep );
+    }
+
+    private static int shift(int hash) {
+        return ( hash % COUNTERS_PER_WORD ) * BITS_PER_COUNTER;
+    }
+}
@@ -6,25 +6,79 @@ import java.util.*;
  * Stores the ground truth used to test the BloomMap code
  * This code is not necessary in a real system.
  * Used in initialisation of the RecommenderMap since the ground truth must be mirrored in it.
+ *
+ * The followers are held in compressed sparse row form: the followers of the reference object in row r are
+ * follower_ids[offsets[r]..offsets[r+1]) in ascending order without duplicates, so membership is a binary search
+ * and no Integer is held per follower.
  */
 public class Followers {
     private final List<Integer> data;
+    private final int[] sorted_data;                                    // the data objects in ascending order
     private final int objects_per_influencer;
     private final List<Integer> refs;
-    private Map<Integer,List<Integer>> map = new HashMap<>();
+    private final int[] sorted_refs;                                    // the reference objects in ascending order
+    private final int[] rows;                                           // rows[i] is the row of sorted_refs[i]
+    private final int[] offsets;                                        // the followers of row r start at offsets[r], offsets[refs.size()] is the number of followers
+    private final int[] follower_ids;
 
     Random rand = new Random(98162435 ); // key mash for repeatability
 
     public Followers(List<Integer> refs, List<Integer> data, int objects_per_influencer) {
-        
+
         this.data = data;
         this.refs = refs;
         this.objects_per_influencer = objects_per_influencer;
+        this.sorted_data = sortedArray(data);
+        this.sorted_refs = sortedArray(refs);
+        this.rows = rowsOf(refs, sorted_refs);
+        this.offsets = new int[refs.size() + 1];
+
+        int[] followers = new int[ Math.multiplyExact( refs.size(), objects_per_influencer ) ];
+        int size = 0;
+        for( int r = 0; r < refs.size(); r++ ) {
+            offsets[r] = size;
+            size = constructFollowers(followers, size);
+        }
+        offsets[refs.size()] = size;
+        this.follower_ids = trimmed(followers, size);
+    }
+
+    /**
+     * Creates the ground truth from an explicit map.
+     * @param refs - the reference objects
+     * @param data - the data objects
+     * @param map - maps from each reference object to the data objects that follow it
+     */
+    public Followers(List<Integer> refs, List<Integer> data, Map<Integer,List<Integer>> map) {
+        this.data = data;
+        this.refs = refs;
+        this.sorted_data = sortedArray(data);
+        this.sorted_refs = sortedArray(refs);
+        this.rows = rowsOf(refs, sorted_refs);
+        this.offsets = new int[refs.size() + 1];
 
+        long total = 0;
         for( int ro : refs ) {
-            List<Integer> followers = constructFollowers(ro);
-            map.put( ro,followers);
+            List<Integer> followers = map.get(ro);
+            total += followers == null ? 0 : followers.size();
         }
+        int[] followers = new int[ Math.toIntExact(total) ];
+        int size = 0;
+        int most = 0;
+        for( int r = 0; r < refs.size(); r++ ) {
+            offsets[r] = size;
+            List<Integer> row = map.get( refs.get(r) );
+            if( row != null ) {
+                for( int follower : row ) {
+                    followers[size++] = follower;
+                }
+                size = sortAndDeduplicate(followers, offsets[r], size);
+            }
+            most = Math.max( most, size - offsets[r] );
+        }
+        offsets[refs.size()] = size;
+        this.follower_ids = trimmed(followers, size);
+        this.objects_per_influencer = most;
     }
 
     /**
@@ -40,12 +94,11 @@ public class Followers {
     }
 
     public List<Integer> getInfluencersOf( int obj ) {
-        System.out.println( "In data : " + data.contains(obj) );
+        System.out.println( "In data : " + isData(obj) );
         ArrayList<Integer> influencers = new ArrayList<>();
-        for( int ro : map.keySet() ) {
-            List<Integer> influenced_by = map.get(ro);
-            if( influenced_by.contains(obj) ) {
-                influencers.add( ro );
+        for( int r = 0; r < refs.size(); r++ ) {
+            if( inRow(r, obj) ) {
+                influencers.add( refs.get(r) );
             }
         }
         return influencers;
@@ -54,20 +107,142 @@ public class Followers {
     /**
      *
      * @param ro a reference object
-     * @return the objects that reference (are influenced by) the reference object ro
+     * @return the objects that reference (are influenced by) the reference object ro in ascending order, or null if ro is not a reference object.
+     * The list is a read only view of the followers.
      */
     public List<Integer> getFollowers(int ro) {
-        return map.get(ro);
+        int row = rowOf(ro);
+        if( row < 0 ) {
+            return null;
+        }
+        int from = offsets[row];
+        int size = offsets[row + 1] - from;
+        return new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                Objects.checkIndex(index, size);
+                return follower_ids[from + index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Integer && inRow(row, (Integer) o);
+            }
+        };
+    }
+
+    /**
+     * @param ro a reference object
+     * @return the objects that reference (are influenced by) the reference object ro in ascending order
+     */
+    public int[] getFollowerArray(int ro) {
+        int row = checkedRowOf(ro);
+        return Arrays.copyOfRange(follower_ids, offsets[row], offsets[row + 1]);
+    }
+
+    /**
+     * @param ro a reference object
+     * @return the number of objects that reference the reference object ro
+     */
+    public int numberOfFollowers(int ro) {
+        int row = checkedRowOf(ro);
+        return offsets[row + 1] - offsets[row];
+    }
+
+    /**
+     * @param obj a data object
+     * @param ro a reference object
+     * @return true if obj is influenced by ro
+     */
+    public boolean follows(int obj, int ro) {
+        return inRow( checkedRowOf(ro), obj );
+    }
+
+    /**
+     * @param obj an object
+     * @return true if obj is one of the data objects
+     */
+    public boolean isData(int obj) {
+        return Arrays.binarySearch(sorted_data, obj) >= 0;
     }
 
     //------ private methods ------//
 
-    private List<Integer> constructFollowers(int ro) {
-        List<Integer> followers = new ArrayList<>();
+    /**
+     * Adds objects_per_influencer random followers to followers from size, sorted and without duplicates.
+     * @return the new size of followers
+     */
+    private int constructFollowers(int[] followers, int size) {
+        int from = size;
         for( int i = 0; i < objects_per_influencer; i++ ) {
-            followers.add( getRandomFollower());
+            followers[size++] = getRandomFollower();
         }
-        return followers;
+        return sortAndDeduplicate(followers, from, size);
+    }
+
+    /**
+     * Sorts followers[from..to) and removes any duplicates.
+     * @return the end of the sorted followers
+     */
+    private static int sortAndDeduplicate(int[] followers, int from, int to) {
+        Arrays.sort(followers, from, to);
+        int size = from;
+        for( int i = from; i < to; i++ ) {
+            if( i == from || followers[i] != followers[size - 1] ) {
+                followers[size++] = followers[i];
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return the first size followers - followers itself if it holds exactly that many, so the array is only copied if
+     * duplicates were removed
+     */
+    private static int[] trimmed(int[] followers, int size) {
+        return size < followers.length ? Arrays.copyOf(followers, size) : followers;
+    }
+
+    private boolean inRow(int row, int obj) {
+        return Arrays.binarySearch(follower_ids, offsets[row], offsets[row + 1], obj) >= 0;
+    }
+
+    /**
+     * @return the row of the followers of ro, or -1 if ro is not a reference object
+     */
+    private int rowOf(int ro) {
+        int index = Arrays.binarySearch(sorted_refs, ro);
+        return index < 0 ? -1 : rows[index];
+    }
+
+    private int checkedRowOf(int ro) {
+        int row = rowOf(ro);
+        if( row < 0 ) {
+            throw new RuntimeException( "Not a reference object: " + ro );
+        }
+        return row;
+    }
+
+    private static int[] sortedArray(List<Integer> values) {
+        int[] result = values.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * @return the index in refs of each of sorted_refs
+     */
+    private static int[] rowsOf(List<Integer> refs, int[] sorted_refs) {
+        int[] result = new int[sorted_refs.length];
+        for( int r = 0; r < refs.size(); r++ ) {
+            result[ Arrays.binarySearch(sorted_refs, refs.get(r)) ] = r;
+        }
+        return result;
     }
 
     private Integer getRandomFollower() {
@@ -89,10 +264,9 @@ public class Followers {
         for (int data_item : results) {
             int wrong = 0;
             int correct = 0;
-            if (data.contains(data_item)) {
+            if (isData(data_item)) {
                 for (int ref_object : query) {
-                    List<Integer> object_ids = map.get(ref_object);
-                    if (!object_ids.contains(data_item)) {
+                    if (!follows(data_item, ref_object)) {
                         System.out.println("\tnot influenced by " + ref_object);
                         wrong++;
                     } else {
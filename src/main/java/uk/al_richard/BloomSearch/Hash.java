@@ -1,9 +1,8 @@
 package uk.al_richard.BloomSearch;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
 
 /**
  * This class splits a number into n hashes of m bits with a p bit overlap.
@@ -139,6 +138,235 @@ public class Hash {
         return result;
     }
 
+    /**
+     * Produces the same set of candidates as reverseHashes but indexes the hashes by their high (non overlapping) bits
+     * so that each candidate is only compared with the hashes that can extend it.
+     *
+     * reverseHashes runs a fixed schedule of steps (initial hash, bit position, hash) and a candidate created at one step
+     * can only be extended by a hash at a later step that uses that hash. This decoder visits the candidates in the order
+     * of the step at which reverseHashes first creates them, so it creates exactly the same candidates.
+     *
+     * @param hashes - a set of hashes
+     * @return the set of possible records that created the hashes (including false positives).
+     */
+    public Set<Integer> reverseHashesIndexed(List<Integer> hashes) {
+        Set<Integer> result = new TreeSet<>();
+        IndexedDecoder decoder = new IndexedDecoder(hashes);
+        while (decoder.hasNext()) {
+            result.add(decoder.nextInt());
+        }
+        return result;
+    }
+
+    /**
+     * A lazy version of reverseHashesIndexed: candidates are produced as they are found and the decoding stops as soon as
+     * the stream is no longer consumed (e.g. after limit(n) or findFirst()).
+     * @param hashes - a set of hashes
+     * @return a stream of the distinct possible records that created the hashes (including false positives), unordered.
+     */
+    public IntStream streamHashesIndexed(List<Integer> hashes) {
+        return StreamSupport.intStream(
+                Spliterators.spliteratorUnknownSize(new IndexedDecoder(hashes), Spliterator.DISTINCT | Spliterator.NONNULL),
+                false);
+    }
+
+    /**
+     * The decoder behind reverseHashesIndexed - each call to nextInt() runs the decoding until the next new candidate is found.
+     */
+    private class IndexedDecoder implements PrimitiveIterator.OfInt {
+
+        private final List<Integer> hashes;
+        private final int num_hashes;
+        private final int positions;                // the number of bit positions each initial hash is moved through in reverseHashes
+        private final int NON_OVERLAPPING_BITS;
+        private final int OVERLAPPING_BITS;
+        private final int[] heads;                  // the heads of the hashes in ascending order
+        private final int[] by_head;                // by_head[i] is the index in hashes of the hash whose head is heads[i]
+        private final StepQueue queue = new StepQueue();
+        private final Set<Integer> visited = new HashSet<>();
+
+        private boolean found = false;              // true if next holds a candidate not yet returned
+        private int next;
+
+        IndexedDecoder(List<Integer> hashes) {
+            this.hashes = hashes;
+            this.num_hashes = hashes.size();
+
+            int non_overlap_size = hash_length - overlap;
+            this.NON_OVERLAPPING_BITS = bits(non_overlap_size);
+            this.OVERLAPPING_BITS = bits(overlap);
+
+            int count = 0;
+            for (int index = non_overlap_size; index < num_bits_in_balanced_rep - overlap; index += overlap) {
+                count++;
+            }
+            this.positions = count;
+
+            // index the hashes by their first (non overlapping) bits
+
+            long[] head_and_index = new long[num_hashes];
+            for (int i = 0; i < num_hashes; i++) {
+                int start_of_hash = (hashes.get(i) >> overlap) & NON_OVERLAPPING_BITS;
+                head_and_index[i] = ((long) start_of_hash << 32) | i;
+            }
+            Arrays.sort(head_and_index);
+            this.heads = new int[num_hashes];
+            this.by_head = new int[num_hashes];
+            for (int i = 0; i < num_hashes; i++) {
+                heads[i] = (int) (head_and_index[i] >>> 32);
+                by_head[i] = (int) head_and_index[i];
+            }
+
+            if (num_hashes >= 2 && positions > 0) { // otherwise reverseHashes never performs a step
+                long steps_per_initial = (long) positions * (num_hashes - 1);
+                for (int initial_index = 0; initial_index < num_hashes; initial_index++) {
+                    queue.add(initial_index * steps_per_initial, hashes.get(initial_index)); // each initial hash joins at the first step of its block
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (!found && !queue.isEmpty()) {
+                long step = queue.firstStep();
+                int extendand = queue.removeFirst();
+                if (visited.add(extendand)) { // this is the first (earliest) step at which reverseHashes creates extendand
+                    int end_of_extendand = extendand & NON_OVERLAPPING_BITS;
+                    for (int i = firstIndexOf(heads, end_of_extendand); i < num_hashes && heads[i] == end_of_extendand; i++) {
+                        int hash_index = by_head[i];
+                        long next_step = nextStep(step, hash_index, num_hashes, positions);
+                        if (next_step >= 0) {
+                            int last_bits_hash = hashes.get(hash_index) & OVERLAPPING_BITS;
+                            queue.add(next_step, (extendand << overlap) | last_bits_hash);
+                        }
+                    }
+                    next = extendand;
+                    found = true;
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            found = false;
+            return next;
+        }
+    }
+
+    /**
+     * Steps in reverseHashes are numbered in the order they are performed: for each initial hash there is a block of
+     * positions * (num_hashes - 1) steps, within a block each position tries every hash except the initial one in order.
+     * @return the first step after step that tries to extend with the hash at hash_index, or -1 if there is none.
+     */
+    private static long nextStep(long step, int hash_index, int num_hashes, int positions) {
+        int others = num_hashes - 1;
+        long steps_per_initial = (long) positions * others;
+
+        int initial_index = (int) (step / steps_per_initial);
+        long in_block = step % steps_per_initial;
+        long position = in_block / others;
+        int slot = (int) (in_block % others);
+
+        if (initial_index != hash_index) {
+            int hash_slot = hash_index < initial_index ? hash_index : hash_index - 1;
+            if (hash_slot > slot) {
+                return initial_index * steps_per_initial + position * others + hash_slot;
+            }
+            if (position + 1 < positions) {
+                return initial_index * steps_per_initial + (position + 1) * others + hash_slot;
+            }
+        }
+        int next_initial = initial_index + 1;
+        if (next_initial == hash_index) {
+            next_initial++;
+        }
+        if (next_initial >= num_hashes) {
+            return -1;
+        }
+        int hash_slot = hash_index < next_initial ? hash_index : hash_index - 1;
+        return next_initial * steps_per_initial + hash_slot;
+    }
+
+    /**
+     * @return the index of the first element of sorted that is >= key (sorted.length if there is none)
+     */
+    private static int firstIndexOf(int[] sorted, int key) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < key) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * A binary min heap of candidates ordered by the step at which they are created.
+     */
+    private static class StepQueue {
+        private long[] steps = new long[64];
+        private int[] candidates = new int[64];
+        private int size = 0;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        long firstStep() {
+            return steps[0];
+        }
+
+        void add(long step, int candidate) {
+            if (size == steps.length) {
+                steps = Arrays.copyOf(steps, size * 2);
+                candidates = Arrays.copyOf(candidates, size * 2);
+            }
+            int i = size++;
+            while (i > 0 && steps[(i - 1) / 2] > step) {
+                int parent = (i - 1) / 2;
+                steps[i] = steps[parent];
+                candidates[i] = candidates[parent];
+                i = parent;
+            }
+            steps[i] = step;
+            candidates[i] = candidate;
+        }
+
+        int removeFirst() {
+            int result = candidates[0];
+            size--;
+            long step = steps[size];
+            int candidate = candidates[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && steps[child + 1] < steps[child]) {
+                    child++;
+                }
+                if (steps[child] >= step) {
+                    break;
+                }
+                steps[i] = steps[child];
+                candidates[i] = candidates[child];
+                i = child;
+            }
+            steps[i] = step;
+            candidates[i] = candidate;
+            return result;
+        }
+    }
+
     private static boolean match(int start_of_hash, int end_of_extendand ) {
         return ( start_of_hash ^ end_of_extendand ) == 0;
     }
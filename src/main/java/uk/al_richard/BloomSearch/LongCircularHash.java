@@ -0,0 +1,241 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.Arrays;
+
+/**
+ * A version of CircularHash for identifiers of up to 62 bits held in longs (see BalanceGen.getLongIterator).
+ * The hashes are still ints - they index Bloom filters - so hash_length must be less than 31.
+ */
+public class LongCircularHash {
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private final long SOLN_BITS;
+    private final long OVERLAPPING_BITS;
+    private final long NON_OVERLAPPING_BITS;
+    private final int HASH_BITS;
+
+    private final int hash_length;
+    private final int overlap;
+    private final int num_bits_in_input;
+    private final int num_hashes;
+
+    // Scratch frontiers used by the decoder, one pair per thread so that decoding allocates almost nothing.
+    private final ThreadLocal<long[][]> decode_buffers = ThreadLocal.withInitial( () -> new long[][]{ new long[INITIAL_BUFFER_SIZE], new long[INITIAL_BUFFER_SIZE] } );
+
+    /**
+     * @param hash_length - how long the hash is required to be (less than 31)
+     * @param overlap - each hash is overlapped by this amount
+     * @param num_hashes - the number of hashes needed
+     * @param num_bits_in_input - the length of the longs being hashed (at most 62).
+     */
+    public LongCircularHash(int hash_length, int overlap, int num_hashes, int num_bits_in_input) {
+        this.hash_length = hash_length;
+        this.overlap = overlap;
+        this.num_hashes = num_hashes;
+        this.num_bits_in_input = num_bits_in_input;
+
+        if( hash_length >= Integer.SIZE - 1 ) {
+            throw new RuntimeException( "Hash length must be less than 31: " + hash_length );
+        }
+        if( num_bits_in_input >= Long.SIZE - 1 ) {
+            throw new RuntimeException( "Input length must be less than 63: " + num_bits_in_input );
+        }
+        if( num_bits_in_input < hash_length ) {
+            throw new RuntimeException( "Not enough bits with which to hash" );
+        }
+        if( num_hashes * overlap > num_bits_in_input ) {
+            throw new RuntimeException( "Too many hashes requested" );
+        }
+
+        this.OVERLAPPING_BITS = bits(overlap);
+        this.NON_OVERLAPPING_BITS = bits(hash_length - overlap);
+        this.SOLN_BITS = bits(num_bits_in_input);
+        this.HASH_BITS = (int) bits(hash_length);
+    }
+
+    /**
+     * Produces the same hashes as CircularHash.hash does for numbers that fit in an int.
+     * @param to_split - a number that is to be hashed into binary numbers each hash_length bits in length
+     * @return the hashes
+     */
+    public int[] hash( long to_split ) {
+        int[] result = new int[num_hashes];
+
+        for( int count = 0; count < num_hashes; count++ ) {
+            int index = count * overlap;
+            if( index + hash_length <= num_bits_in_input ) { // we can take the hash in a single grab
+                result[count] = (int) ( to_split & HASH_BITS );
+            } else { // need to take two bit slices and combine them together
+                int rhs_remainder_size = num_bits_in_input - index;         // number of bits to select from right end of the long
+                int lhs_remainder_size = hash_length-rhs_remainder_size;    // number of bits to select from left end of the long
+
+                long rhs_remainder = to_split & bits(rhs_remainder_size);
+                long lhs_remainder = ( to_split >>> (num_bits_in_input-lhs_remainder_size) ) & bits(lhs_remainder_size);
+
+                result[count] = (int) ( rhs_remainder | lhs_remainder << rhs_remainder_size );
+            }
+            to_split = rotateRight(to_split,overlap);
+        }
+        return result;
+    }
+
+    /**
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return the possible records that created the hashes (including false positives) in ascending order.
+     */
+    public long[] reverseHashes(OpenBitSet bits) {
+        checkBits(bits);
+        return decode(bits, false);
+    }
+
+    /**
+     * As reverseHashes but partial solutions are dropped as soon as they can no longer end up with equal numbers of ones and zeros.
+     * @param bits - a bitset whose set bits are the hashes, all less than 2^hash_length
+     * @return the bit balanced records that could have created the hashes (including false positives) in ascending order.
+     */
+    public long[] reverseBalancedHashes(OpenBitSet bits) {
+        checkBits(bits);
+        return decode(bits, true);
+    }
+
+    /**
+     * The same algorithm as CircularHash.decode on long frontiers.
+     */
+    private long[] decode(OpenBitSet bits, boolean balanced_only) {
+
+        long[][] buffers = decode_buffers.get();
+        int remaining = num_hashes - 1; // the number of extensions still to be made to the solutions in the frontier
+
+        long[] frontier = ensureCapacity(buffers, 0, bits.cardinality());
+        int frontier_size = 0;
+        for (int hash = bits.nextSetBit(0); hash >= 0; hash = bits.nextSetBit(hash + 1)) {
+            if (!balanced_only || canBalance(hash, remaining)) {
+                frontier[frontier_size++] = hash;
+            }
+        }
+
+        while (remaining > 0 && frontier_size > 0) {
+            remaining--;
+            long[] next = buffers[1];
+            int next_size = 0;
+
+            for (int i = 0; i < frontier_size; i++) {
+                long potential_soln = frontier[i];
+                int tail = tail(potential_soln);
+                int to = (tail + 1) << overlap;
+                for (int hash = bits.nextSetBit(tail << overlap); hash >= 0 && hash < to; hash = bits.nextSetBit(hash + 1)) {
+                    long extended = extend(potential_soln, hash);
+                    if (!balanced_only || canBalance(extended, remaining)) {
+                        if (next_size == next.length) {
+                            next = grow(buffers, 1);
+                        }
+                        next[next_size++] = extended;
+                    }
+                }
+            }
+            if (!isAscending(next, next_size)) { // only happens if extending has shifted bits off the top of the long
+                next_size = sortUnique(next, next_size);
+            }
+            buffers[1] = frontier;
+            buffers[0] = next;
+            frontier = next;
+            frontier_size = next_size;
+        }
+
+        int trimmed_size = 0;
+        for (int i = 0; i < frontier_size; i++) {
+            long trimmed = frontier[i] & SOLN_BITS;
+            if (!balanced_only || BalanceGen.bitsAreBalanced(trimmed, num_bits_in_input)) {
+                frontier[trimmed_size++] = trimmed;
+            }
+        }
+        return Arrays.copyOf(frontier, sortUnique(frontier, trimmed_size));
+    }
+
+    /**
+     * See CircularHash.canBalance
+     * @param partial_soln - a partial solution
+     * @param remaining - the number of extensions still to be made to partial_soln
+     * @return false if partial_soln can no longer be extended into a solution with equal numbers of ones and zeros
+     */
+    private boolean canBalance(long partial_soln, int remaining) {
+        int bits_to_come = remaining * overlap;
+        int kept_bits = num_bits_in_input - bits_to_come;
+        if (kept_bits <= 0) {
+            return true;
+        }
+        int ones = Long.bitCount(partial_soln & ((1L << kept_bits) - 1));
+        int ones_required = num_bits_in_input / 2;
+        return ones <= ones_required && ones + bits_to_come >= ones_required;
+    }
+
+    private void checkBits(OpenBitSet bits) {
+        if (bits.length() > 1L << hash_length) {
+            throw new RuntimeException("Bits must be less than 2^" + hash_length + " found: " + (bits.length() - 1));
+        }
+    }
+
+    private long rotateRight( long number, int amount ) {
+        long bottom_bits = number & bits(amount);
+        number = number >>> amount;
+        return number | (bottom_bits << (num_bits_in_input-amount));
+    }
+
+    private long extend(long potential_soln, int hash) {
+        return (potential_soln << overlap) | (hash & OVERLAPPING_BITS);
+    }
+
+    private int tail(long potential_soln) {
+        return (int) (potential_soln & NON_OVERLAPPING_BITS); // the non overlapping bits from the solution
+    }
+
+    /**
+     * @param length - the number of bits that we require to be set i.e. 4 will produce 0b1111
+     * @return a long with exactly the low length bits set
+     */
+    private static long bits(int length) {
+        return length == 0 ? 0 : -1L >>> (Long.SIZE - length);
+    }
+
+    private static boolean isAscending(long[] numbers, int size) {
+        for (int i = 1; i < size; i++) {
+            if (numbers[i] <= numbers[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sorts the first size elements of numbers and removes duplicates
+     * @return the number of unique elements now at the start of numbers
+     */
+    private static int sortUnique(long[] numbers, int size) {
+        if (size == 0) {
+            return 0;
+        }
+        Arrays.sort(numbers, 0, size);
+        int unique = 1;
+        for (int i = 1; i < size; i++) {
+            if (numbers[i] != numbers[unique - 1]) {
+                numbers[unique++] = numbers[i];
+            }
+        }
+        return unique;
+    }
+
+    private static long[] ensureCapacity(long[][] buffers, int which, int capacity) {
+        if (buffers[which].length < capacity) {
+            buffers[which] = new long[Math.max(capacity, buffers[which].length * 2)];
+        }
+        return buffers[which];
+    }
+
+    private static long[] grow(long[][] buffers, int which) {
+        buffers[which] = Arrays.copyOf(buffers[which], buffers[which].length * 2);
+        return buffers[which];
+    }
+}
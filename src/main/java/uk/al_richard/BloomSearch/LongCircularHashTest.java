@@ -0,0 +1,80 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.LongStream;
+
+/**
+ * Checks that LongCircularHash agrees with CircularHash for identifiers which fit in an int: the hashes of each
+ * identifier, and the records decoded by reverseHashes and reverseBalancedHashes from Bloom filters of those hashes.
+ */
+public class LongCircularHashTest {
+
+    private static final int POPULATION_SIZE = BloomProductSearch.ONE_MILLION;
+    private static final int NUMBER_OF_IDS = 2000;
+    private static final int[] HASH_LENGTHS = { 16, 18 };
+    private static final int[] OVERLAPS = { 1, 2 };
+    private static final int[] NUM_HASHES = { 6, 8 };
+    private static final int[] IDS_IN_BLOOM = { 10, 100, 1000 };
+
+    public static void main(String[] args) {
+
+        int balanced_rep_size = BalanceGen.numberBitsInBalancedRep(POPULATION_SIZE);
+        int[] ids = new int[NUMBER_OF_IDS];
+        Iterator<Integer> generator = BalanceGen.getRandomIterator(POPULATION_SIZE);
+        for( int i = 0; i < NUMBER_OF_IDS; i++ ) {
+            ids[i] = generator.next();
+        }
+
+        int errors = 0;
+        for( int hash_length : HASH_LENGTHS ) {
+            for( int overlap : OVERLAPS ) {
+                for( int num_hashes : NUM_HASHES ) {
+                    String name = "hash length " + hash_length + " overlap " + overlap + " hashes " + num_hashes;
+                    CircularHash int_hash = new CircularHash(hash_length, overlap, num_hashes, balanced_rep_size);
+                    LongCircularHash long_hash = new LongCircularHash(hash_length, overlap, num_hashes, balanced_rep_size);
+
+                    for( int id : ids ) {
+                        List<Integer> expected = int_hash.hash(id);
+                        int[] hashes = long_hash.hash(id);
+                        if( ! Arrays.equals( hashes, expected.stream().mapToInt(Integer::intValue).toArray() ) ) {
+                            System.out.println( "Error " + name + " hashes of " + id + " are " + Arrays.toString(hashes) + " expected " + expected );
+                            errors++;
+                        }
+                    }
+
+                    for( int in_bloom : IDS_IN_BLOOM ) {
+                        OpenBitSet bits = new OpenBitSet(1 << hash_length);
+                        for( int i = 0; i < in_bloom; i++ ) {
+                            for( int hash : int_hash.hash( ids[i] ) ) {
+                                bits.set(hash);
+                            }
+                        }
+                        if( ! sameRecords( int_hash.reverseHashes(bits), long_hash.reverseHashes(bits) ) ) {
+                            System.out.println( "Error " + name + " reverseHashes differ with " + in_bloom + " ids in the bloom" );
+                            errors++;
+                        }
+                        if( ! sameRecords( int_hash.reverseBalancedHashes(bits), long_hash.reverseBalancedHashes(bits) ) ) {
+                            System.out.println( "Error " + name + " reverseBalancedHashes differ with " + in_bloom + " ids in the bloom" );
+                            errors++;
+                        }
+                    }
+                }
+            }
+        }
+
+        if( errors == 0 ) {
+            System.out.println( "LongCircularHash agrees with CircularHash" );
+        } else {
+            throw new RuntimeException( errors + " differences between LongCircularHash and CircularHash" );
+        }
+    }
+
+    private static boolean sameRecords(int[] expected, long[] records) {
+        long[] sorted = Arrays.stream(expected).asLongStream().sorted().toArray();
+        return Arrays.equals( sorted, LongStream.of(records).sorted().toArray() );
+    }
+}
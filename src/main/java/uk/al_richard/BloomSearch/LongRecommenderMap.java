@@ -0,0 +1,100 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.util.Arrays;
+
+/**
+ *  A version of RecommenderMap for populations too big for int identifiers - the identifiers are bit balanced longs
+ *  (see BalanceGen.getLongIterator) hashed with a LongCircularHash.
+ *  The id space is too big to index by rank so the reference objects and data are held in sorted arrays.
+ */
+public class LongRecommenderMap {
+
+    private final long[] refs;                                          // The reference objects in ascending order
+    private final Bloom[] blooms;                                       // blooms[i] is the bloom filter of the followers of refs[i]
+    private final long[] dat;                                           // The data objects in ascending order
+    private final LongCircularHash hash;
+
+    /**
+     * @param refs - the reference objects
+     * @param dat - the data objects
+     * @param followers - followers[i] are the data objects which follow refs[i]
+     * @param bloom_width_bits - the width of the bloom filters (at least 2^hash_length_in_bits)
+     * @param hash_length_in_bits - see LongCircularHash
+     * @param hash_overlap - see LongCircularHash
+     * @param num_hashes - see LongCircularHash
+     * @param size_of_balanced_representation - the length of the identifiers in bits
+     */
+    public LongRecommenderMap(long[] refs, long[] dat, long[][] followers, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int size_of_balanced_representation) {
+        if( refs.length != followers.length ) {
+            throw new RuntimeException( "Followers required for each of the " + refs.length + " reference objects, found " + followers.length );
+        }
+
+        this.hash = new LongCircularHash( hash_length_in_bits, hash_overlap, num_hashes, size_of_balanced_representation );
+
+        this.dat = dat.clone();
+        Arrays.sort(this.dat);
+
+        Integer[] order = new Integer[refs.length];
+        for( int i = 0; i < order.length; i++ ) {
+            order[i] = i;
+        }
+        Arrays.sort( order, (a, b) -> Long.compare( refs[a], refs[b] ) );
+
+        this.refs = new long[refs.length];
+        this.blooms = new Bloom[refs.length];
+        for( int i = 0; i < order.length; i++ ) {
+            this.refs[i] = refs[order[i]];
+            this.blooms[i] = makeBloom( followers[order[i]], bloom_width_bits );
+            if( i > 0 && this.refs[i] == this.refs[i - 1] ) {
+                throw new RuntimeException( "Duplicate reference object " + this.refs[i] );
+            }
+        }
+    }
+
+    /**
+     * @param influenced_by - a set of influencers who influence query object
+     * @return the matching users who share similar influences in ascending order (including false positives which are not data - see isData)
+     */
+    public long[] search(long[] influenced_by) {
+        return hash.reverseBalancedHashes( andMatches(influenced_by) );
+    }
+
+    /**
+     * @param id - an identifier returned by search
+     * @return true if id is one of the data objects
+     */
+    public boolean isData(long id) {
+        return Arrays.binarySearch(dat, id) >= 0;
+    }
+
+    private OpenBitSet andMatches(long[] influenced_by) {
+        if( influenced_by.length == 0 ) {
+            throw new RuntimeException( "Cannot get iterator over pivots in andMatches" );
+        }
+        OpenBitSet[] bits = new OpenBitSet[influenced_by.length];
+        for( int i = 0; i < bits.length; i++ ) {
+            bits[i] = getBloom(influenced_by[i]).getBits();
+        }
+        return OpenBitSet.andAll(bits);
+    }
+
+    private Bloom getBloom(long ro) {
+        int index = Arrays.binarySearch(refs, ro);
+        if( index < 0 ) {
+            throw new RuntimeException( "No bloom filter for reference object " + ro );
+        }
+        return blooms[index];
+    }
+
+    private Bloom makeBloom(long[] influenced_by, double bloom_width_bits) {
+        Bloom bloom = new Bloom( bloom_width_bits );
+        for( long follower : influenced_by ) {
+            for( int hash : hash.hash( follower ) ) {
+                bloom.addhash(hash);
+            }
+        }
+        return bloom;
+    }
+}
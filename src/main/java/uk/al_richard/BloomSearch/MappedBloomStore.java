@@ -0,0 +1,355 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+/**
+ * A read only store of Bloom filters of the same width held in a single file which is memory mapped, so the filters
+ * live in the page cache rather than the heap and opening the store reads only the header.
+ * The AND, cardinality and set bit iteration are performed directly on the mapped words.
+ *
+ * File format (big endian):
+ *   int MAGIC, int VERSION, int number of filters, int words per filter,
+ *   int[number of filters] keys in ascending order, padded to a multiple of 8 bytes,
+ *   long[words per filter] words of each filter in key order.
+ */
+public class MappedBloomStore implements Closeable {
+
+    private static final int MAGIC = 0x426c4d53;                        // "BlMS"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 * Integer.BYTES;
+    private static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE & ~7L; // the largest mapping which can be made
+
+    private final FileChannel channel;
+    private final int[] keys;                                           // the key of each filter in ascending order
+    private final int words_per_bloom;
+    private final int blooms_per_segment;
+    private final LongBuffer[] segments;                                // the filters mapped in segments of at most MAX_SEGMENT_BYTES
+
+    private MappedBloomStore(FileChannel channel, int[] keys, int words_per_bloom, long data_offset) throws IOException {
+        this.channel = channel;
+        this.keys = keys;
+        this.words_per_bloom = words_per_bloom;
+
+        long bloom_bytes = (long) Math.max(1, words_per_bloom) * Long.BYTES;
+        this.blooms_per_segment = (int) Math.max(1, MAX_SEGMENT_BYTES / bloom_bytes);
+        int num_segments = ( keys.length + blooms_per_segment - 1 ) / blooms_per_segment;
+        this.segments = new LongBuffer[num_segments];
+        for( int i = 0; i < num_segments; i++ ) {
+            int blooms_in_segment = Math.min(blooms_per_segment, keys.length - i * blooms_per_segment);
+            segments[i] = channel.map( FileChannel.MapMode.READ_ONLY, data_offset + i * blooms_per_segment * bloom_bytes, blooms_in_segment * bloom_bytes ).asLongBuffer();
+        }
+    }
+
+    /**
+     * Writes a store file.
+     * @param file - the file to be written
+     * @param keys - the keys by which the filters are retrieved, unique
+     * @param bloom_for_key - supplies the bits of the filter with each key, called once per key so the filters need not all be held at once
+     * @param width - the width of the filters in bits
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(Path file, int[] keys, IntFunction<OpenBitSet> bloom_for_key, int width) throws IOException {
+        int[] sorted = keys.clone();
+        Arrays.sort(sorted);
+        int words_per_bloom = ( width + Long.SIZE - 1 ) / Long.SIZE;
+
+        try( FileChannel out = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING ) ) {
+            ByteBuffer header = ByteBuffer.allocate( (int) dataOffset(keys.length) );
+            header.putInt(MAGIC).putInt(VERSION).putInt(keys.length).putInt(words_per_bloom);
+            for( int i = 0; i < sorted.length; i++ ) {
+                if( i > 0 && sorted[i] == sorted[i - 1] ) {
+                    throw new RuntimeException( "Duplicate key " + sorted[i] );
+                }
+                header.putInt( sorted[i] );
+            }
+            header.clear();
+            writeFully(out, header);
+
+            ByteBuffer buffer = ByteBuffer.allocate( words_per_bloom * Long.BYTES );
+            for( int key : sorted ) {
+                OpenBitSet bits = bloom_for_key.apply(key);
+                if( bits.length() > width ) {
+                    throw new RuntimeException( "Bloom with key " + key + " is wider than " + width + " bits" );
+                }
+                long[] words = bits.getBits();
+                buffer.clear();
+                LongBuffer longs = buffer.asLongBuffer();
+                longs.put( words, 0, Math.min(words.length, words_per_bloom) );
+                while( longs.hasRemaining() ) {                          // any words beyond those of the filter are zero
+                    longs.put(0L);
+                }
+                writeFully(out, buffer);
+            }
+        }
+    }
+
+    /**
+     * @param file - a file written by write
+     * @return the store held in file
+     * @throws IOException if the file cannot be read or is not a store file
+     */
+    public static MappedBloomStore open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open( file, StandardOpenOption.READ );
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            readFully(channel, header, 0);
+            if( header.getInt(0) != MAGIC || header.getInt(4) != VERSION ) {
+                throw new IOException( "Not a bloom store (or unsupported version): " + file );
+            }
+            int num_blooms = header.getInt(8);
+            int words_per_bloom = header.getInt(12);
+
+            ByteBuffer key_bytes = ByteBuffer.allocate( num_blooms * Integer.BYTES );
+            readFully(channel, key_bytes, HEADER_BYTES);
+            int[] keys = new int[num_blooms];
+            key_bytes.asIntBuffer().get(keys);
+
+            long data_offset = dataOffset(num_blooms);
+            if( channel.size() != data_offset + (long) num_blooms * words_per_bloom * Long.BYTES ) {
+                throw new IOException( "Bloom store is truncated: " + file );
+            }
+            return new MappedBloomStore(channel, keys, words_per_bloom, data_offset);
+        } catch( IOException | RuntimeException e ) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of filters in the store
+     */
+    public int size() {
+        return keys.length;
+    }
+
+    /**
+     * @return the width of the filters in bits
+     */
+    public int widthInBits() {
+        return words_per_bloom * Long.SIZE;
+    }
+
+    /**
+     * @param key - a key
+     * @return true if there is a filter with that key
+     */
+    public boolean contains(int key) {
+        return Arrays.binarySearch(keys, key) >= 0;
+    }
+
+    /**
+     * @param key - the key of a filter
+     * @param bitIndex - a bit index
+     * @return true if bitIndex is set in the filter
+     * @throws IndexOutOfBoundsException if bitIndex is negative or not less than widthInBits()
+     */
+    public boolean get(int key, int bitIndex) {
+        if( bitIndex < 0 || bitIndex >= widthInBits() ) {
+            throw new IndexOutOfBoundsException( "Bit index " + bitIndex + " is outside filters of width " + widthInBits() );
+        }
+        LongBuffer segment = segmentOf(key);
+        return ( segment.get( offsetOf(key) + ( bitIndex >>> 6 ) ) & ( 1L << bitIndex ) ) != 0;
+    }
+
+    /**
+     * @param key - the key of a filter
+     * @return the number of bits set in the filter
+     */
+    public int cardinality(int key) {
+        LongBuffer segment = segmentOf(key);
+        int offset = offsetOf(key);
+        int result = 0;
+        for( int i = 0; i < words_per_bloom; i++ ) {
+            result += Long.bitCount( segment.get(offset + i) );
+        }
+        return result;
+    }
+
+    /**
+     * @param key - the key of a filter
+     * @param fromIndex - the index to start checking from (inclusive)
+     * @return the index of the next set bit in the filter, or -1 if there is none
+     * @throws IndexOutOfBoundsException if fromIndex is negative
+     */
+    public int nextSetBit(int key, int fromIndex) {
+        if( fromIndex < 0 ) {
+            throw new IndexOutOfBoundsException( "fromIndex < 0: " + fromIndex );
+        }
+        LongBuffer segment = segmentOf(key);
+        int offset = offsetOf(key);
+        int i = fromIndex >>> 6;
+        if( i >= words_per_bloom ) {
+            return -1;
+        }
+        long word = segment.get(offset + i) & ( -1L << fromIndex );
+        while( true ) {
+            if( word != 0 ) {
+                return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+            }
+            if( ++i == words_per_bloom ) {
+                return -1;
+            }
+            word = segment.get(offset + i);
+        }
+    }
+
+    /**
+     * @param keys - the keys of the filters to be ANDed (at least one)
+     * @return the number of bits set in the AND of the filters
+     */
+    public int andCardinality(int... keys) {
+        LongBuffer[] buffers = buffersOf(keys);
+        int[] offsets = offsetsOf(keys);
+        int result = 0;
+        for( int i = 0; i < words_per_bloom; i++ ) {
+            result += Long.bitCount( andWord(buffers, offsets, i) );
+        }
+        return result;
+    }
+
+    /**
+     * The AND of some of the filters in a single pass over the mapped words - only the result is on the heap.
+     * @param keys - the keys of the filters to be ANDed (at least one)
+     * @return a new bit set which is the AND of the filters
+     */
+    public OpenBitSet and(int... keys) {
+        LongBuffer[] buffers = buffersOf(keys);
+        int[] offsets = offsetsOf(keys);
+        OpenBitSet result = new OpenBitSet( widthInBits() );
+        long[] words = result.getBits();
+        for( int i = 0; i < words_per_bloom; i++ ) {
+            words[i] = andWord(buffers, offsets, i);
+        }
+        result.wordsUpdated();
+        return result;
+    }
+
+    /**
+     * The AND of a bit set and one of the filters in a single pass over the mapped words - the filter is not copied to the heap.
+     * @param bits - the bit set to be ANDed with the filter, which is not modified
+     * @param key - the key of a filter
+     * @return a new bit set which is the AND of bits and the filter
+     */
+    public OpenBitSet and(OpenBitSet bits, int key) {
+        LongBuffer segment = segmentOf(key);
+        int offset = offsetOf(key);
+        long[] from = bits.getBits();
+        OpenBitSet result = new OpenBitSet( widthInBits() );
+        long[] words = result.getBits();
+        for( int i = 0; i < Math.min(words_per_bloom, from.length); i++ ) {
+            words[i] = from[i] & segment.get(offset + i);
+        }
+        result.wordsUpdated();
+        return result;
+    }
+
+    /**
+     * As OpenBitSet.andAllSetBits on the mapped filters.
+     * @param keys - the keys of the filters to be ANDed (at least one)
+     * @return the indices of the set bits in the AND of the filters in ascending order
+     */
+    public int[] andSetBits(int... keys) {
+        LongBuffer[] buffers = buffersOf(keys);
+        int[] offsets = offsetsOf(keys);
+        int[] result = new int[64];
+        int size = 0;
+        for( int i = 0; i < words_per_bloom; i++ ) {
+            long word = andWord(buffers, offsets, i);
+            if( word != 0 ) {
+                if( size + Long.bitCount(word) > result.length ) {
+                    result = Arrays.copyOf(result, Math.max(result.length * 2, size + Long.SIZE));
+                }
+                int base = i * Long.SIZE;
+                while( word != 0 ) {
+                    result[size++] = base + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Closes the file - the mappings remain valid until they are garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static long andWord(LongBuffer[] buffers, int[] offsets, int i) {
+        long word = buffers[0].get(offsets[0] + i);
+        for( int k = 1; k < buffers.length && word != 0; k++ ) {
+            word &= buffers[k].get(offsets[k] + i);
+        }
+        return word;
+    }
+
+    private LongBuffer[] buffersOf(int[] keys) {
+        if( keys.length == 0 ) {
+            throw new RuntimeException( "At least one bloom is required" );
+        }
+        LongBuffer[] result = new LongBuffer[keys.length];
+        for( int k = 0; k < keys.length; k++ ) {
+            result[k] = segmentOf(keys[k]);
+        }
+        return result;
+    }
+
+    private int[] offsetsOf(int[] keys) {
+        int[] result = new int[keys.length];
+        for( int k = 0; k < keys.length; k++ ) {
+            result[k] = offsetOf(keys[k]);
+        }
+        return result;
+    }
+
+    private LongBuffer segmentOf(int key) {
+        return segments[ indexOf(key) / blooms_per_segment ];
+    }
+
+    /**
+     * @return the index in its segment of the first word of the filter with the key
+     */
+    private int offsetOf(int key) {
+        return ( indexOf(key) % blooms_per_segment ) * words_per_bloom;
+    }
+
+    private int indexOf(int key) {
+        int index = Arrays.binarySearch(keys, key);
+        if( index < 0 ) {
+            throw new RuntimeException( "No bloom filter with key " + key );
+        }
+        return index;
+    }
+
+    private static long dataOffset(int num_blooms) {
+        long end_of_keys = HEADER_BYTES + (long) num_blooms * Integer.BYTES;
+        return ( end_of_keys + 7 ) & ~7L;                               // keep the words 8 byte aligned
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while( buffer.hasRemaining() ) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while( buffer.hasRemaining() ) {
+            if( channel.read(buffer, position + buffer.position()) < 0 ) {
+                throw new IOException( "Unexpected end of bloom store" );
+            }
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,116 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.IntFunction;
+
+/**
+ * Checks MappedBloomStore against the OpenBitSets written to it - get, nextSetBit, cardinality and the ANDs - and
+ * that bit indices outside the filters are rejected rather than reading the words of the neighbouring filter.
+ */
+public class MappedBloomStoreTest {
+
+    private static final int WIDTH = 1 << 12;
+    private static final int NUMBER_OF_BLOOMS = 50;
+
+    private static int errors = 0;
+
+    public static void main(String[] args) throws IOException {
+
+        Random rand = new Random(31415926);
+        int[] keys = new int[NUMBER_OF_BLOOMS];
+        Map<Integer,OpenBitSet> blooms = new HashMap<>();
+        for( int i = 0; i < NUMBER_OF_BLOOMS; i++ ) {
+            keys[i] = i * 7 + 3;
+            OpenBitSet bits = new OpenBitSet(WIDTH);
+            for( int bit = 0; bit < WIDTH; bit++ ) {
+                if( rand.nextInt(4) != 0 ) {
+                    bits.set(bit);
+                }
+            }
+            blooms.put(keys[i], bits);
+        }
+
+        try( MappedBloomStore store = open(keys, blooms::get, WIDTH) ) {
+            for( int key : keys ) {
+                OpenBitSet expected = blooms.get(key);
+                if( store.cardinality(key) != expected.cardinality() ) {
+                    error( "cardinality of " + key + " is " + store.cardinality(key) + " expected " + expected.cardinality() );
+                }
+                for( int bit = 0; bit < WIDTH; bit++ ) {
+                    if( store.get(key, bit) != expected.get(bit) ) {
+                        error( "get(" + key + ", " + bit + ") is " + store.get(key, bit) );
+                    }
+                    if( store.nextSetBit(key, bit) != expected.nextSetBit(bit) ) {
+                        error( "nextSetBit(" + key + ", " + bit + ") is " + store.nextSetBit(key, bit) + " expected " + expected.nextSetBit(bit) );
+                    }
+                }
+            }
+            for( int i = 0; i < 100; i++ ) {
+                int[] anded = new int[ 1 + rand.nextInt(4) ];
+                OpenBitSet[] bits = new OpenBitSet[anded.length];
+                for( int k = 0; k < anded.length; k++ ) {
+                    anded[k] = keys[ rand.nextInt(NUMBER_OF_BLOOMS) ];
+                    bits[k] = blooms.get( anded[k] );
+                }
+                OpenBitSet expected = OpenBitSet.andAll(bits);
+                if( ! store.and(anded).equals(expected) || store.andCardinality(anded) != expected.cardinality() ||
+                    ! Arrays.equals( store.andSetBits(anded), OpenBitSet.andAllSetBits(bits) ) ) {
+                    error( "AND of " + Arrays.toString(anded) + " differs" );
+                }
+                OpenBitSet heap = bits[0];
+                if( ! store.and(heap, anded[anded.length - 1]).equals( OpenBitSet.andAll( heap, bits[bits.length - 1] ) ) ) {
+                    error( "AND of a bit set with " + anded[anded.length - 1] + " differs" );
+                }
+            }
+        }
+
+        // two 128 bit filters in which only the second has bit 5 set - bit 133 of the first is bit 5 of the second
+        OpenBitSet empty = new OpenBitSet(128);
+        OpenBitSet five = new OpenBitSet(128);
+        five.set(5);
+        try( MappedBloomStore store = open(new int[]{ 1, 2 }, key -> key == 1 ? empty : five, 128) ) {
+            checkRejected( "get(1, 133)", () -> store.get(1, 133) );
+            checkRejected( "get(1, 128)", () -> store.get(1, 128) );
+            checkRejected( "get(1, -1)", () -> store.get(1, -1) );
+            checkRejected( "nextSetBit(2, -1)", () -> store.nextSetBit(2, -1) );
+            if( store.nextSetBit(1, 0) != -1 || store.nextSetBit(2, 0) != 5 || store.nextSetBit(2, 128) != -1 ) {
+                error( "nextSetBit reads outside its filter" );
+            }
+        }
+
+        if( errors == 0 ) {
+            System.out.println( "MappedBloomStore agrees with the OpenBitSets written to it" );
+        } else {
+            throw new RuntimeException( errors + " errors in MappedBloomStore" );
+        }
+    }
+
+    private static MappedBloomStore open(int[] keys, IntFunction<OpenBitSet> bloom_for_key, int width) throws IOException {
+        Path file = Files.createTempFile("blooms", ".bin");
+        file.toFile().deleteOnExit();
+        MappedBloomStore.write(file, keys, bloom_for_key, width);
+        return MappedBloomStore.open(file);
+    }
+
+    /**
+     * Checks that access throws an IndexOutOfBoundsException.
+     */
+    private static void checkRejected(String name, Runnable access) {
+        try {
+            access.run();
+            error( name + " was not rejected" );
+        } catch( IndexOutOfBoundsException e ) {
+            System.out.println( name + " rejected: " + e.getMessage() );
+        }
+    }
+
+    private static void error(String message) {
+        System.out.println( "Error " + message );
+        errors++;
+    }
+}
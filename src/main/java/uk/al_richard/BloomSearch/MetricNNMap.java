@@ -5,7 +5,11 @@ import dataPoints.cartesian.CartesianPoint;
 import uk.al_richard.BloomSearch.Util.OpenBitSet;
 import util.OrderedList;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static uk.al_richard.BloomSearch.Hash.pad;
 
@@ -14,33 +18,143 @@ import static uk.al_richard.BloomSearch.Hash.pad;
  */
 public class MetricNNMap {
 
-    private final Map<Integer,CartesianPoint> refs = new HashMap<>();   // Maps could be indexed and map to bit balanced  ints
-    private final Map<Integer,CartesianPoint> dat = new HashMap<>();    // Maps could be indexed and map to bit balanced  ints
-    private final Map<Integer, Bloom> bloom_map = new HashMap<>();      // Maps from pivot to a bloom filter of points for which that pivot is in the NN set
+    // The points, pivots and blooms are held in arrays indexed by the rank of their bit balanced identifier (see BalanceGen.rank)
+
+    private final int id_bits;                                          // the length of the bit balanced identifiers
+    private final CartesianPoint[] refs;                                // Maps from pivot rank to pivot
+    private final CartesianPoint[] dat;                                 // Maps from data rank to data point
+    private final Bloom[] bloom_map;                                    // Maps from pivot rank to a bloom filter of points for which that pivot is in the NN set
+    private MappedBloomStore mapped_blooms = null;                      // if non null replaces bloom_map, keyed by pivot rank (see useMappedBlooms)
+    private final int[] ref_ranks;                                      // the ranks of the pivots
+    private final int[] cardinalities;                                  // Maps from pivot rank to the number of bits set in its bloom filter
+    private final int[] dat_ranks;                                      // the ranks of the data points
     private final double bloom_width;                                   // The width of the bloom filter
     private final Metric<CartesianPoint> metric;                        // the metric to use
     private final int number_instantiation_nns;                         // The number of nns to use in the bloom_map
     private final int number_of_nn_pivots;                            // The number of nns to use to select query solutions
     private final Hash hash;
+    private final int hash_size_in_bits;
+    private final int hash_overlap;
     private final int num_bits_in_data_source;
+    private QueryPlanner planner = new QueryPlanner( QueryPlanner.DEFAULT_SATURATION, QueryPlanner.DEFAULT_PROBE_THRESHOLD );
+
+    private static final int SNAPSHOT_MAGIC = 0x42534d4e;              // "BSMN"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int PIVOT_BLOCK_SIZE = 16;                     // the number of pivots compared with each block of data
+    private static final int DATA_BLOCK_SIZE = 1024;                    // the number of data points compared with each block of pivots
 
     public MetricNNMap(List<CartesianPoint> refs, List<CartesianPoint> dat, Metric<CartesianPoint> metric, int number_nns, double bloom_width, int hash_size_in_bits, int hash_overlap, int num_bits_in_data_source, int number_of_nn_pivots) {
+        this(refs, dat, metric, number_nns, bloom_width, hash_size_in_bits, hash_overlap, num_bits_in_data_source, number_of_nn_pivots, null);
+    }
+
+    /**
+     * As the other constructor but the nearest neighbours of the pivots are found in parallel in build_pool.
+     * @param build_pool - the pool in which to build the bloom filters, null to build them sequentially
+     */
+    public MetricNNMap(List<CartesianPoint> refs, List<CartesianPoint> dat, Metric<CartesianPoint> metric, int number_nns, double bloom_width, int hash_size_in_bits, int hash_overlap, int num_bits_in_data_source, int number_of_nn_pivots, ForkJoinPool build_pool) {
+        this(refs, dat, metric, number_nns, bloom_width, hash_size_in_bits, hash_overlap, num_bits_in_data_source, number_of_nn_pivots,
+             BalanceGen.numberBitsInBalancedRep( refs.size() + dat.size() ), null, null);
+
+        initialiseNNMap(bloom_width,hash_size_in_bits,hash_overlap,build_pool);
+    }
 
-        int total_size = refs.size() + dat.size();
-        Iterator<Integer> identifiers = BalanceGen.getRandomIterator(total_size);
+    /**
+     * Creates a map with no bloom filters - used by the public constructor and load.
+     * @param ref_ranks - the ranks of the identifiers of refs, or null to allocate random identifiers to refs and dat
+     * @param dat_ranks - the ranks of the identifiers of dat, null if ref_ranks is null
+     */
+    private MetricNNMap(List<CartesianPoint> refs, List<CartesianPoint> dat, Metric<CartesianPoint> metric, int number_nns, double bloom_width, int hash_size_in_bits, int hash_overlap, int num_bits_in_data_source, int number_of_nn_pivots, int id_bits, int[] ref_ranks, int[] dat_ranks) {
+
+        this.id_bits = id_bits;
+        int id_space_size = (int) BalanceGen.numberOfBalanced(id_bits);
+        this.refs = new CartesianPoint[id_space_size];
+        this.dat = new CartesianPoint[id_space_size];
+        this.bloom_map = new Bloom[id_space_size];
+        this.cardinalities = new int[id_space_size];
+
+        if( ref_ranks == null ) {
+            Iterator<Integer> identifiers = BalanceGen.getRandomIterator(refs.size() + dat.size());
+            this.ref_ranks = new int[refs.size()];
+            this.dat_ranks = new int[dat.size()];
+
+            initialiseRefs(refs,identifiers);
+            initialiseDat(dat,identifiers);
+        } else {
+            this.ref_ranks = ref_ranks;
+            this.dat_ranks = dat_ranks;
 
-        initialiseRefs(refs,identifiers);
-        initialiseDat(dat,identifiers);
+            placePoints(this.refs, ref_ranks, refs);
+            placePoints(this.dat, dat_ranks, dat);
+        }
 
         this.number_instantiation_nns = number_nns;
         this.bloom_width = bloom_width;
         this.metric = metric;
         this.number_of_nn_pivots = number_of_nn_pivots;
         this.num_bits_in_data_source = num_bits_in_data_source;
+        this.hash_size_in_bits = hash_size_in_bits;
+        this.hash_overlap = hash_overlap;
 
         this.hash = new Hash( hash_size_in_bits,hash_overlap, num_bits_in_data_source);
+    }
+
+    /**
+     * Writes a snapshot of this map (its parameters, the identifiers of the pivots and data and the bloom filters)
+     * which may be read back by load. The points themselves are not written.
+     * @param file - the file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        try( SnapshotIO.Writer out = new SnapshotIO.Writer(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION) ) {
+            out.writeInt(number_instantiation_nns);
+            out.writeDouble(bloom_width);
+            out.writeInt(hash_size_in_bits);
+            out.writeInt(hash_overlap);
+            out.writeInt(num_bits_in_data_source);
+            out.writeInt(number_of_nn_pivots);
+            out.writeInt(id_bits);
+            out.writeInts(ref_ranks);
+            out.writeInts(dat_ranks);
+            for( int rank : ref_ranks ) {
+                OpenBitSet bits = mapped_blooms == null ? bloom_map[rank].getBits() : mapped_blooms.and(rank);
+                out.writeLongs( bits.getBits(), ( bits.length() + Long.SIZE - 1 ) / Long.SIZE ); // trailing zero words are not written
+            }
+        }
+    }
+
+    /**
+     * Reads a map written by save.
+     * @param file - a file written by save
+     * @param refs - the pivots in the order in which they were supplied when the saved map was created
+     * @param dat - the data in the order in which it was supplied when the saved map was created
+     * @param metric - the metric to use
+     * @return the map held in file
+     * @throws IOException if the file cannot be read, is not a snapshot of a MetricNNMap or is corrupt
+     */
+    public static MetricNNMap load(Path file, List<CartesianPoint> refs, List<CartesianPoint> dat, Metric<CartesianPoint> metric) throws IOException {
+        try( SnapshotIO.Reader in = new SnapshotIO.Reader(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION) ) {
+            int number_nns = in.readInt();
+            double bloom_width = in.readDouble();
+            int hash_size_in_bits = in.readInt();
+            int hash_overlap = in.readInt();
+            int num_bits_in_data_source = in.readInt();
+            int number_of_nn_pivots = in.readInt();
+            int id_bits = in.readInt();
+            int[] ref_ranks = in.readInts();
+            int[] dat_ranks = in.readInts();
+            if( ref_ranks.length != refs.size() || dat_ranks.length != dat.size() ) {
+                throw new IOException( "Snapshot has " + ref_ranks.length + " pivots and " + dat_ranks.length + " data points but " + refs.size() + " and " + dat.size() + " were supplied: " + file );
+            }
 
-        initialiseNNMap(bloom_width,hash_size_in_bits,hash_overlap);
+            MetricNNMap map = new MetricNNMap(refs, dat, metric, number_nns, bloom_width, hash_size_in_bits, hash_overlap, num_bits_in_data_source, number_of_nn_pivots, id_bits, ref_ranks, dat_ranks);
+
+            long[] words = new long[ ( (int) bloom_width + Long.SIZE - 1 ) / Long.SIZE ];
+            for( int rank : ref_ranks ) {
+                map.bloom_map[rank] = new Bloom( bloom_width, words, in.readLongs(words) );
+                map.cardinalities[rank] = map.bloom_map[rank].getBits().cardinality();
+            }
+            return map;
+        }
     }
 
     public Set<CartesianPoint> search(CartesianPoint query) {
@@ -49,7 +163,7 @@ public class MetricNNMap {
         System.out.println( "Matching indices in result = " + indices.size() ) ;
         for( int data_index : indices ) {
             System.out.print( "result index = " + pad( Integer.toBinaryString(data_index),num_bits_in_data_source ) );
-            CartesianPoint point = dat.get(data_index);
+            CartesianPoint point = getDataPoint(data_index);
             System.out.println( point == null ? " NOT found" : " FOUND " );
             if( point != null ) {
                 results.add( point );
@@ -58,8 +172,44 @@ public class MetricNNMap {
         return results;
     }
 
+    /**
+     * As search but the candidates are decoded lazily and decoding stops once limit results have been found.
+     * @param query - a metric query to be performed
+     * @param limit - the maximum number of results required
+     * @return at most limit points from the data that match the query
+     */
+    public Set<CartesianPoint> search(CartesianPoint query, int limit) {
+        Set<CartesianPoint> results = new HashSet<>();
+        PrimitiveIterator.OfInt indices = hash.streamHashesIndexed( getSetBits( query ) )
+                                              .filter( index -> BalanceGen.bitsAreBalanced( index, num_bits_in_data_source ) )
+                                              .iterator();
+        while( results.size() < limit && indices.hasNext() ) {
+            CartesianPoint point = getDataPoint(indices.nextInt());
+            if( point != null ) {
+                results.add( point );
+            }
+        }
+        return results;
+    }
+
+    /**
+     * As RecommenderMap.setQueryPlanner.
+     */
+    public void setQueryPlanner(double saturation, int probe_threshold) {
+        this.planner = new QueryPlanner(saturation, probe_threshold);
+    }
+
     /*------------ private methods ------------*/
 
+    /**
+     * @param data_index - a decoded identifier
+     * @return the data point with that identifier or null if there is none
+     */
+    private CartesianPoint getDataPoint(int data_index) {
+        int rank = BalanceGen.rank(data_index, id_bits);
+        return rank < 0 ? null : dat[rank];
+    }
+
     /**
      *
      * @param query - a metric query to be performed
@@ -68,7 +218,7 @@ public class MetricNNMap {
     private Set<Integer> getDataIndices(CartesianPoint query) {
         List<Integer> matching_hashes = getSetBits( query ); // these are the AND of the hashes of datums that for which the pivots are NNs.
 
-        return BalanceGen.filter( hash.reverseHashes( matching_hashes ),num_bits_in_data_source );
+        return BalanceGen.filter( hash.reverseHashesIndexed( matching_hashes ),num_bits_in_data_source );
     }
 
     /**
@@ -76,10 +226,14 @@ public class MetricNNMap {
      * @return a set of hashes which are extracted from the bloom filter search result
      */
     private List<Integer> getSetBits(CartesianPoint query) {
-        OpenBitSet bits = bitSearch(query);
-
-        return Bloom.getSetBits(bits,bloom_width);
+        int[] set_bits = mapped_blooms == null ? Bloom.getSetBitArray( bitSearch(query) )
+                                               : mapped_blooms.andSetBits( plannedPivotRanks(query) ); // the AND and the extraction of its set bits in one pass
 
+        List<Integer> result = new ArrayList<>(set_bits.length);
+        for( int bit : set_bits ) {
+            result.add(bit);
+        }
+        return result;
     }
 
     /**
@@ -87,78 +241,251 @@ public class MetricNNMap {
      * @return a bloom filter which is the AND of all the bloom filters corresponding to the pivots that are the nearest neighbours of query
      */
     private OpenBitSet bitSearch(CartesianPoint query) {
+        if( mapped_blooms != null ) {
+            return mapped_blooms.and( plannedPivotRanks(query) );
+        }
+        int[] closest_pivot_ranks = closestPivotRanks(query);
+        OpenBitSet[] blooms = new OpenBitSet[closest_pivot_ranks.length];
+        int[] counts = new int[closest_pivot_ranks.length];
+        for( int i = 0; i < blooms.length; i++ ) {
+            blooms[i] = bloom_map[closest_pivot_ranks[i]].getBits();
+            counts[i] = cardinalities[closest_pivot_ranks[i]];
+        }
+        return planner.and(blooms, counts, bloom_width);
+    }
 
-        List<Integer> closest_pivot_indices = findClosestPivotIndices(query);
-        Iterator<Integer> iter = closest_pivot_indices.iterator();
-        if( iter.hasNext() ) {
-            OpenBitSet bits = bloom_map.get(iter.next()).getBitsCopy(); // pull out a copy of the first bitmap from the map entries of the closest pivots
-            while (iter.hasNext()) {
-                OpenBitSet next_bits = bloom_map.get(iter.next()).getBits();
-                bits.and(next_bits);
-            }
-            return bits;
-        } else {
+    /**
+     * @param query - a metric query to be performed
+     * @return the ranks of the pivots that are the nearest neighbours of query in the order in which their filters should be ANDed, without any saturated filters
+     */
+    private int[] plannedPivotRanks(CartesianPoint query) {
+        int[] closest_pivot_ranks = closestPivotRanks(query);
+        int[] counts = new int[closest_pivot_ranks.length];
+        for( int i = 0; i < counts.length; i++ ) {
+            counts[i] = cardinalities[closest_pivot_ranks[i]];
+        }
+        int[] order = planner.plan(counts, bloom_width);
+        int[] result = new int[order.length];
+        for( int i = 0; i < order.length; i++ ) {
+            result[i] = closest_pivot_ranks[order[i]];
+        }
+        return result;
+    }
+
+    private int[] closestPivotRanks(CartesianPoint query) {
+        List<Integer> closest_pivot_ranks = findClosestPivotRanks(query);
+        if( closest_pivot_ranks.isEmpty() ) {
             throw new RuntimeException( "Cannot get iterator over pivots in bitSearch" );
         }
+        return closest_pivot_ranks.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Writes the bloom filters of the pivots to a file which may be opened with MappedBloomStore.open and used by useMappedBlooms.
+     * @param file - the file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void saveBlooms(Path file) throws IOException {
+        MappedBloomStore.write( file, ref_ranks, rank -> bloom_map[rank].getBits(), (int) bloom_width );
+    }
+
+    /**
+     * Makes search use bloom filters held in a memory mapped store (written by saveBlooms) and releases those on the heap.
+     * @param store - a store containing a bloom filter for each pivot keyed by pivot rank
+     */
+    public void useMappedBlooms(MappedBloomStore store) {
+        if( store.widthInBits() < bloom_width || store.widthInBits() >= bloom_width + Long.SIZE ) {
+            throw new RuntimeException( "Store holds bloom filters of width " + store.widthInBits() + " but this map uses " + bloom_width );
+        }
+        for( int rank : ref_ranks ) {
+            if( ! store.contains(rank) ) {
+                throw new RuntimeException( "No bloom filter in store for pivot rank " + rank );
+            }
+        }
+        this.mapped_blooms = store;
+        Arrays.fill(bloom_map, null);
     }
     
-    private List<Integer> findClosestPivotIndices(CartesianPoint query) {
+    private List<Integer> findClosestPivotRanks(CartesianPoint query) {
         OrderedList<Integer, Double> ol = new OrderedList<>(number_of_nn_pivots); // a list of the closest pivots to the query.
-        for( int i : refs.keySet() ) {
-            CartesianPoint ref = refs.get(i);
-            ol.add( i,metric.distance(query,ref ) ); // remember the closest pivots to the query,
+        for( int rank : ref_ranks ) {
+            ol.add( rank,metric.distance(query,refs[rank] ) ); // remember the closest pivots to the query,
         }
         return ol.getList();
     }
     
 
-    private void initialiseNNMap(double bloom_width, int hash_size_in_bits, int hash_overlap) {
+    /**
+     * Finds the number_instantiation_nns nearest data points to each pivot and adds their identifiers to the pivot's bloom filter.
+     * The pivots are split into blocks of PIVOT_BLOCK_SIZE (built in parallel in build_pool if it is non null) and each block
+     * is compared with the data a block of DATA_BLOCK_SIZE points at a time, so the data block stays in cache while it is
+     * compared with every pivot of the block.
+     */
+    private void initialiseNNMap(double bloom_width, int hash_size_in_bits, int hash_overlap, ForkJoinPool build_pool) {
 
-        for( int ro_index : refs.keySet() ) {
-            CartesianPoint ref = refs.get(ro_index);
+        long start = System.nanoTime();
 
-            OrderedList<Integer, Double> ol = new OrderedList<>(number_instantiation_nns);
-            for( int data_index : dat.keySet() ) {
-                CartesianPoint point = dat.get(data_index);
-                double distance = metric.distance(ref, point);
-                ol.add(data_index,distance);
+        if( build_pool == null ) {
+            for( int from = 0; from < ref_ranks.length; from += PIVOT_BLOCK_SIZE ) {
+                buildPivotBlock( from, Math.min( from + PIVOT_BLOCK_SIZE, ref_ranks.length ) );
             }
+        } else {
+            build_pool.invoke( new BuildTask(0, ref_ranks.length) );
+        }
+
+        System.out.println( "Built bloom filters of the " + number_instantiation_nns + " NNs of " + ref_ranks.length + " pivots in " +
+                            dat_ranks.length + " points in " + ( System.nanoTime() - start ) / 1000000 + "ms" );
+    }
 
-            // We now have an ordered list of NNs
-            // Next hash each of these and add them to a Bloom filter
+    /**
+     * Builds the bloom filters of the pivots with ranks ref_ranks[from..to)
+     */
+    private void buildPivotBlock(int from, int to) {
+
+        CartesianPoint[] pivots = new CartesianPoint[to - from];
+        NearestNeighbours[] nns = new NearestNeighbours[to - from];
+        for( int p = 0; p < pivots.length; p++ ) {
+            pivots[p] = refs[ref_ranks[from + p]];
+            nns[p] = new NearestNeighbours(number_instantiation_nns);
+        }
 
+        CartesianPoint[] block = new CartesianPoint[DATA_BLOCK_SIZE];
+        for( int block_start = 0; block_start < dat_ranks.length; block_start += DATA_BLOCK_SIZE ) {
+            int block_size = Math.min( DATA_BLOCK_SIZE, dat_ranks.length - block_start );
+            for( int d = 0; d < block_size; d++ ) {
+                block[d] = dat[dat_ranks[block_start + d]];
+            }
+            for( int p = 0; p < pivots.length; p++ ) {
+                for( int d = 0; d < block_size; d++ ) {
+                    nns[p].offer( metric.distance(pivots[p], block[d]), block_start + d );
+                }
+            }
+        }
+
+        // Next hash each of the NNs and add them to a Bloom filter
+
+        for( int p = 0; p < pivots.length; p++ ) {
             Bloom bloom = new Bloom( bloom_width );
 
-            for( int data_id : ol.getList() ) {
-                List<Integer> hashes = hash.hash( data_id );
+            for( int i = 0; i < nns[p].size; i++ ) {
+                List<Integer> hashes = hash.hash( BalanceGen.unrank(dat_ranks[nns[p].indices[i]], id_bits) );
                 for( int hash : hashes ) {
                     bloom.addhash(hash);
                 }
             }
-            OpenBitSet bits = bloom.getBits();                            // Debug/analysis
-            List<Integer> set_bits = Bloom.getSetBits(bits,bloom_width);  // Debug/analysis
-            // System.out.println( "Bits set = " + set_bits.size() + "(" +  ( set_bits.size() * 100 / bits.size() ) +  "%)" );  // Debug/analysis
 
-            //showDists(ro_index, ol);
             //showBloom( bloom );
-            bloom_map.put(ro_index,bloom);
+            bloom_map[ref_ranks[from + p]] = bloom;
+            cardinalities[ref_ranks[from + p]] = bloom.getBits().cardinality();
+        }
+    }
+
+    /**
+     * Builds the bloom filters of the pivots with ranks ref_ranks[from..to), splitting the range into pivot blocks.
+     */
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        BuildTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
 
+        @Override
+        protected void compute() {
+            if( to - from <= PIVOT_BLOCK_SIZE ) {
+                buildPivotBlock(from, to);
+            } else {
+                int blocks = ( to - from + PIVOT_BLOCK_SIZE - 1 ) / PIVOT_BLOCK_SIZE;
+                int mid = from + ( blocks / 2 ) * PIVOT_BLOCK_SIZE;
+                invokeAll( new BuildTask(from, mid), new BuildTask(mid, to) );
+            }
+        }
+    }
+
+    /**
+     * The capacity nearest points offered so far, held in a binary max heap so the furthest is at the root.
+     * Points are offered in ascending order of index and of equally distant points the later is treated as further,
+     * so ties are resolved as they are by OrderedList.
+     */
+    private static class NearestNeighbours {
+        private final double[] distances;
+        private final int[] indices;                                    // the indices in dat_ranks of the points
+        private int size = 0;
+
+        NearestNeighbours(int capacity) {
+            this.distances = new double[capacity];
+            this.indices = new int[capacity];
+        }
+
+        void offer(double distance, int index) {
+            if( size < distances.length ) {
+                int i = size++;
+                while( i > 0 && further( distance, index, (i - 1) >>> 1 ) ) { // sift up
+                    int parent = (i - 1) >>> 1;
+                    distances[i] = distances[parent];
+                    indices[i] = indices[parent];
+                    i = parent;
+                }
+                distances[i] = distance;
+                indices[i] = index;
+            } else if( size > 0 && distance < distances[0] ) {
+                int i = 0;
+                while( true ) {                                         // sift down from the root
+                    int child = 2 * i + 1;
+                    if( child >= size ) {
+                        break;
+                    }
+                    if( child + 1 < size && further( distances[child + 1], indices[child + 1], child ) ) {
+                        child++;
+                    }
+                    if( further( distance, index, child ) ) {
+                        break;
+                    }
+                    distances[i] = distances[child];
+                    indices[i] = indices[child];
+                    i = child;
+                }
+                distances[i] = distance;
+                indices[i] = index;
+            }
+        }
+
+        /**
+         * @return true if the point at index with the given distance is further than the point in slot
+         */
+        private boolean further(double distance, int index, int slot) {
+            return distance > distances[slot] || ( distance == distances[slot] && index > indices[slot] );
         }
     }
 
     private void initialiseRefs(List<CartesianPoint> supplied_refs, Iterator<Integer> identifiers) {
-        initialiseRawData( refs,supplied_refs,identifiers );
+        initialiseRawData( refs,ref_ranks,supplied_refs,identifiers );
     }
 
     private void initialiseDat(List<CartesianPoint> supplied_dat, Iterator<Integer> identifiers) {
-        initialiseRawData(dat, supplied_dat, identifiers);
+        initialiseRawData(dat, dat_ranks, supplied_dat, identifiers);
+    }
+
+    private static void placePoints(CartesianPoint[] by_rank, int[] ranks, List<CartesianPoint> points) {
+        for( int i = 0; i < ranks.length; i++ ) {
+            if( ranks[i] < 0 || ranks[i] >= by_rank.length ) {
+                throw new RuntimeException( "Illegal rank " + ranks[i] );
+            }
+            by_rank[ranks[i]] = points.get(i);
+        }
     }
 
-    private void initialiseRawData(Map<Integer, CartesianPoint> map, List<CartesianPoint> points, Iterator<Integer> identifiers) {
+    private void initialiseRawData(CartesianPoint[] by_rank, int[] ranks, List<CartesianPoint> points, Iterator<Integer> identifiers) {
 
+        int count = 0;
         for( CartesianPoint p : points ) {
             if( identifiers.hasNext() ) {
-                map.put(identifiers.next(), p);
+                int rank = BalanceGen.rank(identifiers.next(), id_bits);
+                by_rank[rank] = p;
+                ranks[count++] = rank;
             } else {
                 throw new RuntimeException( "Cannot get balanced identifier for data/pivot" );
             }
@@ -0,0 +1,290 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+
+/**
+ * Materialised ANDs of the bloom filters of the pairs of reference objects which are most often queried together,
+ * used by RecommenderMap to start the AND of a query from the sparsest cached pair it contains rather than from two filters.
+ * The pairs in the queries are counted as they are performed and the cached pairs are chosen from the counts by refresh,
+ * which may be called periodically in the background (see RecommenderMap.enablePairCache).
+ * The counts are halved at each refresh so that the cache follows changes in the queries.
+ * At most max(max_pairs * TRACKED_PAIRS_PER_CACHED_PAIR, MIN_TRACKED_PAIRS) pairs are counted between refreshes: when the
+ * counts are full the pairs seen only once are dropped, and if they are still full pairs not already counted are ignored
+ * until the next refresh - so the counts stay bounded even if refresh is never called.
+ */
+public class PairIntersectionCache implements Closeable {
+
+    private static final int MIN_COUNT = 2;                             // the number of times a pair must have been queried since the last refresh (after halving) to be cached
+    private static final int TRACKED_PAIRS_PER_CACHED_PAIR = 64;
+    private static final int MIN_TRACKED_PAIRS = 1 << 16;
+
+    private final IntFunction<OpenBitSet> bits_of;                      // supplies the bits of the bloom filter of a reference object, which are not modified
+    private final int max_pairs;
+    private final int max_tracked_pairs;                                // the most pairs counted in pair_counts
+    private volatile boolean pruned = false;                            // true if pair_counts has been pruned since the last refresh
+    private volatile RuntimeException refresh_failure = null;           // the exception which stopped the background refresh, if any
+    private final ConcurrentHashMap<Long,LongAdder> pair_counts = new ConcurrentHashMap<>();   // from a pair of reference objects (see pairOf) to the number of queries including it
+    private volatile Map<Long,Pair> pairs = Collections.emptyMap();    // the cached pairs, replaced (never modified) by refresh and invalidate
+    private final Set<Integer> changed = new HashSet<>();               // the reference objects whose filters have changed since the start of the current refresh
+    private ScheduledExecutorService refresher = null;
+    private final Object refreshing = new Object();                     // held for the whole of refresh so that refreshes do not overlap
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder hits = new LongAdder();                     // queries which started from a cached pair
+    private volatile int refreshes = 0;
+    private long queries_at_refresh = 0;                                // the value of queries at the last refresh
+
+    /**
+     * A cached AND of the filters of reference objects a and b.
+     */
+    static class Pair {
+        final int a;
+        final int b;
+        final OpenBitSet bits;
+        final int cardinality;
+
+        private Pair(int a, int b, OpenBitSet bits) {
+            this.a = a;
+            this.b = b;
+            this.bits = bits;
+            this.cardinality = bits.cardinality();
+        }
+    }
+
+    /**
+     * @param bits_of - supplies the bloom filters
+     * @param max_pairs - the maximum number of pairs to cache
+     */
+    PairIntersectionCache(IntFunction<OpenBitSet> bits_of, int max_pairs) {
+        if( max_pairs < 1 ) {
+            throw new RuntimeException( "At least one pair must be cached: " + max_pairs );
+        }
+        this.bits_of = bits_of;
+        this.max_pairs = max_pairs;
+        this.max_tracked_pairs = (int) Math.min( Integer.MAX_VALUE, Math.max( (long) max_pairs * TRACKED_PAIRS_PER_CACHED_PAIR, MIN_TRACKED_PAIRS ) );
+    }
+
+    /**
+     * Calls refresh every period_ms milliseconds in a background thread until close is called.
+     * If a refresh fails the background refresh is stopped and the exception is reported and kept (see getRefreshFailure).
+     */
+    synchronized void start(long period_ms) {
+        if( refresher != null ) {
+            throw new RuntimeException( "Pair cache is already being refreshed" );
+        }
+        refresher = Executors.newSingleThreadScheduledExecutor( r -> {
+            Thread thread = new Thread(r, "pair-cache-refresh");
+            thread.setDaemon(true);
+            return thread;
+        } );
+        refresher.scheduleWithFixedDelay( () -> {
+            try {
+                refresh();
+            } catch( RuntimeException e ) {
+                refresh_failure = e;
+                System.err.println( "Pair cache refresh failed, stopping the background refresh" );
+                e.printStackTrace();
+                stopRefresher();
+            }
+        }, period_ms, period_ms, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Counts the pairs of reference objects in a query.
+     * @param influenced_by - a set of influencers who influence query object, in any order possibly with duplicates
+     */
+    void record(int[] influenced_by) {
+        queries.increment();
+        for( int i = 0; i < influenced_by.length; i++ ) {
+            for( int j = i + 1; j < influenced_by.length; j++ ) {
+                if( influenced_by[i] != influenced_by[j] ) {
+                    long key = pairOf(influenced_by[i], influenced_by[j]);
+                    LongAdder count = pair_counts.get(key);
+                    if( count == null && hasRoomFor() ) {
+                        count = pair_counts.computeIfAbsent( key, k -> new LongAdder() );
+                    }
+                    if( count != null ) {
+                        count.increment();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if another pair may be counted, dropping the pairs seen only once (the first time the counts are full since the last refresh) to make room
+     */
+    private boolean hasRoomFor() {
+        if( pair_counts.size() < max_tracked_pairs ) {
+            return true;
+        }
+        if( ! pruned ) {
+            pruned = true;
+            pair_counts.values().removeIf( count -> count.sum() <= 1 );
+        }
+        return pair_counts.size() < max_tracked_pairs;
+    }
+
+    /**
+     * @param influenced_by - a set of influencers who influence query object
+     * @return the cached pair in the query with the fewest bits set, or null if there is none
+     */
+    Pair best(int[] influenced_by) {
+        Map<Long,Pair> current = pairs;
+        Pair best = null;
+        for( int i = 0; i < influenced_by.length; i++ ) {
+            for( int j = i + 1; j < influenced_by.length; j++ ) {
+                Pair pair = current.get( pairOf(influenced_by[i], influenced_by[j]) );
+                if( pair != null && ( best == null || pair.cardinality < best.cardinality ) ) {
+                    best = pair;
+                }
+            }
+        }
+        if( best != null ) {
+            hits.increment();
+        }
+        return best;
+    }
+
+    /**
+     * Replaces the cached pairs with the max_pairs pairs most often queried since the last refresh, reusing the ANDs
+     * of those already cached, and halves the counts. Does nothing if there have been no queries since the last refresh.
+     */
+    public void refresh() {
+        synchronized( refreshing ) {
+            refreshPairs();
+        }
+    }
+
+    private void refreshPairs() {
+        long queried = queries.sum();
+        if( queried == queries_at_refresh ) {
+            return;
+        }
+        queries_at_refresh = queried;
+        pruned = false;
+        synchronized( this ) {
+            changed.clear();
+        }
+        List<Map.Entry<Long,Long>> counts = new ArrayList<>();
+        for( Map.Entry<Long,LongAdder> entry : pair_counts.entrySet() ) {
+            long count = entry.getValue().sumThenReset();
+            if( count >= MIN_COUNT ) {
+                counts.add( new AbstractMap.SimpleImmutableEntry<>( entry.getKey(), count ) );
+            }
+            if( count / 2 == 0 ) {
+                pair_counts.remove( entry.getKey() );
+            } else {
+                entry.getValue().add( count / 2 );
+            }
+        }
+        counts.sort( Map.Entry.<Long,Long>comparingByValue().reversed() );
+
+        Map<Long,Pair> current = pairs;
+        Map<Long,Pair> chosen = new HashMap<>();
+        for( Map.Entry<Long,Long> entry : counts.subList( 0, Math.min( max_pairs, counts.size() ) ) ) {
+            long key = entry.getKey();
+            Pair pair = current.get(key);
+            if( pair == null ) {
+                int a = (int) ( key >> 32 );
+                int b = (int) key;
+                pair = new Pair( a, b, OpenBitSet.andAll( bits_of.apply(a), bits_of.apply(b) ) );
+            }
+            chosen.put(key, pair);
+        }
+
+        synchronized( this ) {                                          // drop any pair whose filters changed while it was being built
+            chosen.values().removeIf( pair -> changed.contains(pair.a) || changed.contains(pair.b) );
+            pairs = Collections.unmodifiableMap(chosen);
+            refreshes++;
+        }
+    }
+
+    /**
+     * Removes the cached pairs which include ro - called when the bloom filter of ro changes.
+     * @param ro - a reference object
+     */
+    public synchronized void invalidate(int ro) {
+        changed.add(ro);
+        Map<Long,Pair> remaining = new HashMap<>(pairs);
+        if( remaining.values().removeIf( pair -> pair.a == ro || pair.b == ro ) ) {
+            pairs = Collections.unmodifiableMap(remaining);
+        }
+    }
+
+    /**
+     * @return the number of pairs cached
+     */
+    public int size() {
+        return pairs.size();
+    }
+
+    /**
+     * @return the number of bytes used by the cached ANDs
+     */
+    public long sizeInBytes() {
+        long result = 0;
+        for( Pair pair : pairs.values() ) {
+            result += pair.bits.size() / 8;
+        }
+        return result;
+    }
+
+    public long queries() { return queries.sum(); }
+
+    public long hits() { return hits.sum(); }
+
+    /**
+     * @return the number of pairs currently being counted, at most max(max_pairs * 64, 65536)
+     */
+    public int trackedPairs() { return pair_counts.size(); }
+
+    /**
+     * @return the exception which stopped the background refresh, or null if it has not failed
+     */
+    public RuntimeException getRefreshFailure() { return refresh_failure; }
+
+    /**
+     * Stops the background refresh, if any - the cached pairs remain usable.
+     */
+    @Override
+    public synchronized void close() {
+        if( refresher != null ) {
+            refresher.shutdownNow();
+            refresher = null;
+        }
+    }
+
+    /**
+     * Stops the background refresh from within a refresh, so the refreshing thread is not interrupted.
+     */
+    private synchronized void stopRefresher() {
+        if( refresher != null ) {
+            refresher.shutdown();
+            refresher = null;
+        }
+    }
+
+    public String toString() {
+        return "PairIntersectionCache: " + size() + "/" + max_pairs + " pairs (" + sizeInBytes() + " bytes) queries " + queries() + " starting from a pair " + hits() +
+               " refreshes " + refreshes;
+    }
+
+    /**
+     * @return a key for the unordered pair a, b
+     */
+    private static long pairOf(int a, int b) {
+        int low = Math.min(a, b);
+        int high = Math.max(a, b);
+        return ( (long) low << 32 ) | ( high & 0xffffffffL );
+    }
+}
@@ -0,0 +1,174 @@
+package uk.al_richard.BloomSearch;
+
+import java.util.*;
+
+/**
+ * A bounded cache of the results of RecommenderMap queries, keyed by the set of influencers in the query (so the order
+ * of the influencers and any duplicates do not matter).
+ * The least recently used results are evicted when the total weight of the cache - the number of influencers and
+ * results held - would exceed the maximum.
+ * The results involving a reference object are invalidated when its bloom filter changes (see RecommenderMap.addFollower).
+ * All methods are synchronized so the cache may be used by concurrent searches.
+ */
+public class QueryCache {
+
+    private final long max_weight;
+    private long weight = 0;
+    private final LinkedHashMap<Key,Set<Integer>> entries = new LinkedHashMap<>(16, 0.75f, true);   // in least recently used order
+    private final Map<Integer,Set<Key>> keys_of = new HashMap<>();     // from a reference object to the keys of the entries containing it
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param max_weight - the maximum total number of influencers and results held in the cache
+     */
+    public QueryCache(long max_weight) {
+        if( max_weight < 1 ) {
+            throw new RuntimeException( "Cache weight must be at least 1: " + max_weight );
+        }
+        this.max_weight = max_weight;
+    }
+
+    /**
+     * The influencers of a query sorted with duplicates removed.
+     */
+    static final class Key {
+        private final int[] influencers;
+        private final int hash_code;
+
+        private Key(int[] influencers) {
+            this.influencers = influencers;
+            this.hash_code = Arrays.hashCode(influencers);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals( influencers, ((Key) obj).influencers );
+        }
+
+        @Override
+        public int hashCode() {
+            return hash_code;
+        }
+    }
+
+    /**
+     * @param influenced_by - a set of influencers who influence query object
+     * @return the key of the query
+     */
+    static Key key(List<Integer> influenced_by) {
+        return new Key( influenced_by.stream().mapToInt(Integer::intValue).sorted().distinct().toArray() );
+    }
+
+    /**
+     * @return the cached result of the query with the key, or null if it is not cached
+     */
+    synchronized Set<Integer> get(Key key) {
+        Set<Integer> result = entries.get(key);
+        if( result == null ) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return result;
+    }
+
+    /**
+     * Caches the result of the query with the key, evicting the least recently used results if necessary.
+     * @param result - an unmodifiable set, which is returned by get
+     */
+    synchronized void put(Key key, Set<Integer> result) {
+        long entry_weight = weightOf(key, result);
+        if( entry_weight > max_weight ) {                               // would evict everything else and still not fit
+            return;
+        }
+        remove(key);
+        while( weight + entry_weight > max_weight ) {
+            remove( entries.keySet().iterator().next() );
+            evictions++;
+        }
+        entries.put(key, result);
+        weight += entry_weight;
+        for( int ro : key.influencers ) {
+            keys_of.computeIfAbsent( ro, k -> new HashSet<>() ).add(key);
+        }
+    }
+
+    /**
+     * Removes the results of the queries which include ro - called when the bloom filter of ro changes.
+     * @param ro - a reference object
+     */
+    public synchronized void invalidate(int ro) {
+        Set<Key> keys = keys_of.get(ro);
+        if( keys != null ) {
+            for( Key key : new ArrayList<>(keys) ) {
+                remove(key);
+                invalidations++;
+            }
+        }
+    }
+
+    /**
+     * Removes all of the results from the cache, the statistics are unchanged.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        keys_of.clear();
+        weight = 0;
+    }
+
+    /**
+     * @return the number of results in the cache
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total number of influencers and results held in the cache
+     */
+    public synchronized long weight() {
+        return weight;
+    }
+
+    public synchronized long hits() { return hits; }
+
+    public synchronized long misses() { return misses; }
+
+    public synchronized long evictions() { return evictions; }
+
+    public synchronized long invalidations() { return invalidations; }
+
+    /**
+     * @return the fraction of lookups which found a result, 0 if there have been none
+     */
+    public synchronized double hitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / ( hits + misses );
+    }
+
+    public synchronized String toString() {
+        return "QueryCache: " + entries.size() + " results weight " + weight + "/" + max_weight + " hits " + hits + " misses " + misses +
+               " evictions " + evictions + " invalidations " + invalidations;
+    }
+
+    private void remove(Key key) {
+        Set<Integer> result = entries.remove(key);
+        if( result != null ) {
+            weight -= weightOf(key, result);
+            for( int ro : key.influencers ) {
+                Set<Key> keys = keys_of.get(ro);
+                keys.remove(key);
+                if( keys.isEmpty() ) {
+                    keys_of.remove(ro);
+                }
+            }
+        }
+    }
+
+    private static long weightOf(Key key, Set<Integer> result) {
+        return key.influencers.length + result.size();
+    }
+}
@@ -0,0 +1,110 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.Util.OpenBitSet;
+
+/**
+ * Plans the AND of the bloom filters of a query from the number of bits set in each filter (which the maps keep):
+ * the filters are ANDed sparsest first, filters with at least saturation * width bits set are skipped, the AND stops
+ * as soon as it is empty (the bits left are counted as each filter is ANDed, not in a separate pass), and once at most probe_threshold bits remain each of them is checked in the remaining
+ * filters with get rather than ANDing whole filters.
+ * With a saturation of 1 (the default) only filters with every bit set are skipped so the result is exactly the AND of
+ * the filters; a lower saturation skips nearly full filters, which may add false positives but never loses a result.
+ */
+class QueryPlanner {
+
+    static final double DEFAULT_SATURATION = 1.0;
+    static final int DEFAULT_PROBE_THRESHOLD = 64;
+
+    private final double saturation;
+    private final int probe_threshold;
+
+    /**
+     * @param saturation - the fraction of bits set at or above which a filter is skipped, in (0,1]
+     * @param probe_threshold - the number of bits set in the running AND at or below which the remaining filters are probed bit by bit
+     */
+    QueryPlanner(double saturation, int probe_threshold) {
+        if( saturation <= 0 || saturation > 1 ) {
+            throw new RuntimeException( "Saturation must be in (0,1]: " + saturation );
+        }
+        if( probe_threshold < 0 ) {
+            throw new RuntimeException( "Probe threshold must not be negative: " + probe_threshold );
+        }
+        this.saturation = saturation;
+        this.probe_threshold = probe_threshold;
+    }
+
+    /**
+     * @param cardinalities - the number of bits set in each of the filters of a query
+     * @param width - the width of the filters in bits
+     * @return the indices of the filters to be ANDed in the order in which to AND them - sparsest first with the
+     * saturated filters removed (if every filter is saturated the sparsest is kept)
+     */
+    int[] plan(int[] cardinalities, double width) {
+        int[] order = new int[cardinalities.length];
+        int size = 0;
+        for( int i = 0; i < cardinalities.length; i++ ) {               // insertion sort - queries have few filters
+            int j = size++;
+            while( j > 0 && cardinalities[order[j - 1]] > cardinalities[i] ) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        int kept = 1;
+        while( kept < size && cardinalities[order[kept]] < saturation * width ) {
+            kept++;
+        }
+        int[] result = new int[kept];
+        System.arraycopy(order, 0, result, 0, kept);
+        return result;
+    }
+
+    /**
+     * @param bits - the bits of the filters of a query (at least one), which are not modified
+     * @param cardinalities - the number of bits set in each of bits
+     * @param width - the width of the filters in bits
+     * @return a new bit set which is the AND of bits (less any saturated filters)
+     */
+    OpenBitSet and(OpenBitSet[] bits, int[] cardinalities, double width) {
+        if( bits.length == 0 ) {
+            throw new RuntimeException( "At least one bloom is required" );
+        }
+        int[] order = plan(cardinalities, width);
+        int sparsest = cardinalities[order[0]];
+
+        OpenBitSet result;
+        int remaining;                                                  // the number of bits set in result
+        int next;
+        if( order.length == 1 || sparsest == 0 || sparsest <= probe_threshold ) {
+            result = (OpenBitSet) bits[order[0]].clone();
+            remaining = sparsest;
+            next = 1;
+        } else {
+            result = new OpenBitSet( bits[order[0]].size() );
+            remaining = OpenBitSet.andAllCardinality( result, bits[order[0]], bits[order[1]] );
+            next = 2;
+        }
+        while( next < order.length && remaining > 0 ) {
+            if( remaining <= probe_threshold ) {
+                probe(result, bits, order, next);
+                break;
+            }
+            remaining = OpenBitSet.andAllCardinality( result, result, bits[order[next++]] );
+        }
+        return result;
+    }
+
+    /**
+     * Clears the bits of result which are not set in all of bits[order[from..]].
+     */
+    private static void probe(OpenBitSet result, OpenBitSet[] bits, int[] order, int from) {
+        for( int bit = result.nextSetBit(0); bit >= 0; bit = result.nextSetBit(bit + 1) ) {
+            for( int k = from; k < order.length; k++ ) {
+                if( ! bits[order[k]].get(bit) ) {
+                    result.clear(bit);
+                    break;
+                }
+            }
+        }
+    }
+}
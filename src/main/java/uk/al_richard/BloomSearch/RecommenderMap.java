@@ -1,24 +1,62 @@
 package uk.al_richard.BloomSearch;
 
+import uk.al_richard.BloomSearch.Util.CompressedBitSet;
 import uk.al_richard.BloomSearch.Util.OpenBitSet;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  *  A Class to map from reference points to the number_nns which have that reference point in their nearest neighbour set.
  */
 public class RecommenderMap {
 
-    private final Map<Integer, Bloom> bloom_map = new HashMap<>();       // Maps from pivot to a bloom filter of points for which that pivot is in the NN set
+    /**
+     * How the bloom filters are held: DENSE as a Bloom (an OpenBitSet of bloom_width_bits bits) per reference object,
+     * COMPRESSED as a CompressedBitSet per reference object, which is much smaller for influencers with few followers,
+     * MAPPED in a memory mapped MappedBloomStore (see useMappedBlooms),
+     * COUNTING as a CountingBloom per reference object, which is 5 times the size of DENSE but allows followers to be removed (see removeFollower).
+     */
+    public enum BloomStorage { DENSE, COMPRESSED, MAPPED, COUNTING }
+
+    private static final int SNAPSHOT_MAGIC = 0x4253524d;              // "BSRM"
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int BUILD_TASKS_PER_THREAD = 4;               // the reference objects are split into this many tasks per thread of a build pool
+
+    private BloomStorage storage;
+    private MappedBloomStore mapped_blooms = null;                      // The bloom filters keyed by reference object, used if storage is MAPPED
+    private final Bloom[] bloom_map;                                    // Maps from the rank of a reference object (see BalanceGen.rank) to a bloom filter of its followers, used if storage is DENSE
+    private final CompressedBitSet[] compressed_map;                    // As bloom_map, used if storage is COMPRESSED
+    private final CountingBloom[] counting_map;                         // As bloom_map, used if storage is COUNTING
+    private final int[] cardinalities;                                  // Maps from the rank of a reference object to the number of bits set in its bloom filter, whatever the storage
+    private final OpenBitSet data_ranks;                                // The ranks of the data objects
     private final double bloom_width_bits;                              // The width of the bloom filter
     private final int reference_objects_per_query;                      // The number of reference objects to use to select query solutions
     private final CircularHash hash;
     private final int size_of_balanced_representation;
     private final int no_referrers_per_object;                          // the number of references from the bloom filter to each pivot
     private final int hash_length_in_bits;
+    private final int hash_overlap;
+    private final int num_hashes;
 
     private final List<Integer> dat;
     private final List<Integer> refs;
@@ -26,24 +64,195 @@ public class RecommenderMap {
 
     private Followers followers;
 
+    private ForkJoinPool decode_pool = null;                            // if non null decoding is performed in parallel in this pool
+    private int decode_parallelism_threshold;
+
+    private QueryCache query_cache = null;                              // if non null the results of search and searchBatch are cached in it
+    private final LongAdder batch_intersections = new LongAdder();      // the number of bloom filters ANDed by searchBatch
+    private final LongAdder batch_filters_queried = new LongAdder();    // the number of influencers in the queries given to searchBatch
+    private final LongAdder at_least_bits_set = new LongAdder();        // the number of bits decoded by searchAtLeast
+    private PairIntersectionCache pair_cache = null;                    // if non null andMatches starts from the ANDs of the pairs cached in it
+    private QueryPlanner planner = new QueryPlanner( QueryPlanner.DEFAULT_SATURATION, QueryPlanner.DEFAULT_PROBE_THRESHOLD );
+
     public RecommenderMap(List<Integer> refs, List<Integer> dat, Followers followers, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int size_of_balanced_representation, int reference_objects_per_query, int no_referrers_per_object) {
+        this(refs, dat, followers, bloom_width_bits, hash_length_in_bits, hash_overlap, num_hashes, size_of_balanced_representation, reference_objects_per_query, no_referrers_per_object, BloomStorage.DENSE);
+    }
 
-        this.dat = dat;
-        this.refs = refs;
+    /**
+     * As the other constructor but the bloom filters are held as specified by storage.
+     */
+    public RecommenderMap(List<Integer> refs, List<Integer> dat, Followers followers, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int size_of_balanced_representation, int reference_objects_per_query, int no_referrers_per_object, BloomStorage storage) {
+        this(refs, dat, followers, bloom_width_bits, hash_length_in_bits, hash_overlap, num_hashes, size_of_balanced_representation, reference_objects_per_query, no_referrers_per_object, storage, null);
+    }
+
+    /**
+     * As the other constructors but the bloom filters are built in parallel in build_pool.
+     * @param build_pool - the pool in which to build the bloom filters, null to build them sequentially
+     */
+    public RecommenderMap(List<Integer> refs, List<Integer> dat, Followers followers, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int size_of_balanced_representation, int reference_objects_per_query, int no_referrers_per_object, BloomStorage storage, ForkJoinPool build_pool) {
+        this(refs, dat, bloom_width_bits, hash_length_in_bits, hash_overlap, num_hashes, size_of_balanced_representation, reference_objects_per_query, no_referrers_per_object, storage);
 
         this.followers = followers;
 
-        int total_size = refs.size() + dat.size();
+        initialiseNNMap(bloom_width_bits,hash_length_in_bits,hash_overlap,build_pool);
+    }
+
+    /**
+     * Creates a map with no bloom filters - used by the public constructors and load.
+     */
+    private RecommenderMap(List<Integer> refs, List<Integer> dat, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int size_of_balanced_representation, int reference_objects_per_query, int no_referrers_per_object, BloomStorage storage) {
+
+        if( storage == BloomStorage.MAPPED ) {
+            throw new RuntimeException( "Mapped bloom filters must be built and saved first, see useMappedBlooms" );
+        }
+        this.storage = storage;
+        this.dat = dat;
+        this.refs = refs;
 
         this.bloom_width_bits = bloom_width_bits;
         this.reference_objects_per_query = reference_objects_per_query;
         this.size_of_balanced_representation = size_of_balanced_representation;
         this.no_referrers_per_object = no_referrers_per_object;
         this.hash_length_in_bits = hash_length_in_bits;
+        this.hash_overlap = hash_overlap;
+        this.num_hashes = num_hashes;
 
         this.hash = new CircularHash( hash_length_in_bits,hash_overlap, num_hashes, size_of_balanced_representation);
 
-        initialiseNNMap(bloom_width_bits,hash_length_in_bits,hash_overlap);
+        int id_space_size = (int) BalanceGen.numberOfBalanced(size_of_balanced_representation);
+        this.bloom_map = storage == BloomStorage.DENSE ? new Bloom[id_space_size] : null;
+        this.compressed_map = storage == BloomStorage.COMPRESSED ? new CompressedBitSet[id_space_size] : null;
+        this.counting_map = storage == BloomStorage.COUNTING ? new CountingBloom[id_space_size] : null;
+        this.cardinalities = new int[id_space_size];
+        this.data_ranks = new OpenBitSet(id_space_size);
+        for( int datum : dat ) {
+            data_ranks.set( rankOf(datum) );
+        }
+    }
+
+    /**
+     * Writes a snapshot of this map (its parameters, identifiers and bloom filters) which may be read back by load.
+     * Filters held in a MappedBloomStore are written as DENSE, as are COUNTING filters (whose counts are lost).
+     * @param file - the file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        try( SnapshotIO.Writer out = new SnapshotIO.Writer(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION) ) {
+            out.writeInt(hash_length_in_bits);
+            out.writeInt(hash_overlap);
+            out.writeInt(num_hashes);
+            out.writeInt(size_of_balanced_representation);
+            out.writeInt(reference_objects_per_query);
+            out.writeInt(no_referrers_per_object);
+            out.writeDouble(bloom_width_bits);
+            out.writeInt( storage == BloomStorage.COMPRESSED ? BloomStorage.COMPRESSED.ordinal() : BloomStorage.DENSE.ordinal() );
+            out.writeInts( refs.stream().mapToInt(Integer::intValue).toArray() );
+            out.writeInts( dat.stream().mapToInt(Integer::intValue).toArray() );
+            for( int ro : refs ) {
+                OpenBitSet bits = getBits(ro);
+                out.writeLongs( bits.getBits(), ( bits.length() + Long.SIZE - 1 ) / Long.SIZE ); // trailing zero words are not written
+            }
+        }
+    }
+
+    /**
+     * Reads a map written by save - the followers of the reference objects are not part of the snapshot.
+     * @param file - a file written by save
+     * @return the map held in file
+     * @throws IOException if the file cannot be read, is not a snapshot of a RecommenderMap or is corrupt
+     */
+    public static RecommenderMap load(Path file) throws IOException {
+        try( SnapshotIO.Reader in = new SnapshotIO.Reader(file, SNAPSHOT_MAGIC, SNAPSHOT_VERSION) ) {
+            int hash_length_in_bits = in.readInt();
+            int hash_overlap = in.readInt();
+            int num_hashes = in.readInt();
+            int size_of_balanced_representation = in.readInt();
+            int reference_objects_per_query = in.readInt();
+            int no_referrers_per_object = in.readInt();
+            double bloom_width_bits = in.readDouble();
+            int storage_ordinal = in.readInt();
+            if( storage_ordinal != BloomStorage.DENSE.ordinal() && storage_ordinal != BloomStorage.COMPRESSED.ordinal() ) {
+                throw new IOException( "Corrupt snapshot, unknown bloom storage " + storage_ordinal + ": " + file );
+            }
+            BloomStorage storage = BloomStorage.values()[storage_ordinal];
+            List<Integer> refs = IntStream.of( in.readInts() ).boxed().collect(Collectors.toList());
+            List<Integer> dat = IntStream.of( in.readInts() ).boxed().collect(Collectors.toList());
+
+            RecommenderMap map = new RecommenderMap(refs, dat, bloom_width_bits, hash_length_in_bits, hash_overlap, num_hashes, size_of_balanced_representation, reference_objects_per_query, no_referrers_per_object, storage);
+
+            long[] words = new long[ ( (int) bloom_width_bits + Long.SIZE - 1 ) / Long.SIZE ];
+            for( int ro : refs ) {
+                Bloom bloom = new Bloom( bloom_width_bits, words, in.readLongs(words) );
+                map.cardinalities[map.rankOf(ro)] = bloom.getBits().cardinality();
+                if( storage == BloomStorage.DENSE ) {
+                    map.bloom_map[map.rankOf(ro)] = bloom;
+                } else {
+                    map.compressed_map[map.rankOf(ro)] = CompressedBitSet.valueOf( bloom.getBits() );
+                }
+            }
+            return map;
+        }
+    }
+
+    /**
+     * Makes search decode the chains starting from different hashes in parallel.
+     * @param pool - the pool in which to perform the decoding, null to decode sequentially
+     * @param parallelism_threshold - the number of set bits in a query at or below which decoding is performed sequentially
+     */
+    public void setParallelDecoding(ForkJoinPool pool, int parallelism_threshold) {
+        this.decode_pool = pool;
+        this.decode_parallelism_threshold = parallelism_threshold;
+    }
+
+    /**
+     * Sets how the bloom filters of a query are ANDed (see QueryPlanner): they are always ANDed sparsest first and the
+     * AND stops as soon as it is empty.
+     * @param saturation - the fraction of bits set at or above which a filter is skipped, 1 (the default) to only skip
+     *                     filters with every bit set - lower values may add false positives but never lose a result
+     * @param probe_threshold - the number of bits set in the AND at or below which the remaining filters are probed bit by bit rather than ANDed
+     */
+    public void setQueryPlanner(double saturation, int probe_threshold) {
+        this.planner = new QueryPlanner(saturation, probe_threshold);
+    }
+
+    /**
+     * Makes search and searchBatch cache their results in cache - the cached sets are unmodifiable.
+     * @param cache - the cache to use, null to stop caching
+     */
+    public void setQueryCache(QueryCache cache) {
+        this.query_cache = cache;
+    }
+
+    /**
+     * Makes search start the AND of the bloom filters of a query from a cached AND of the filters of a pair of its
+     * influencers if there is one. The pairs most often queried together are cached - they are chosen each time
+     * the cache is refreshed from the queries performed since the last refresh.
+     * Only used if storage is DENSE or COUNTING.
+     * @param max_pairs - the maximum number of pairs to cache
+     * @param refresh_period_ms - the period in milliseconds at which the cache is refreshed in the background, 0 if it is only refreshed by calling refresh on the cache
+     * @return the cache, which may be used to refresh it and for statistics
+     */
+    public PairIntersectionCache enablePairCache(int max_pairs, long refresh_period_ms) {
+        if( storage != BloomStorage.DENSE && storage != BloomStorage.COUNTING ) {
+            throw new RuntimeException( "Pairs can only be cached with DENSE or COUNTING bloom storage, not " + storage );
+        }
+        disablePairCache();
+        PairIntersectionCache cache = new PairIntersectionCache( this::getBits, max_pairs );
+        if( refresh_period_ms > 0 ) {
+            cache.start(refresh_period_ms);
+        }
+        this.pair_cache = cache;
+        return cache;
+    }
+
+    /**
+     * Stops using the pair cache, if any, and its background refresh.
+     */
+    public void disablePairCache() {
+        if( pair_cache != null ) {
+            pair_cache.close();
+            pair_cache = null;
+        }
     }
 
     /**
@@ -52,45 +261,547 @@ public class RecommenderMap {
      * @return the matching users who share similar influences
      */
     public Set<Integer> search(List<Integer> influenced_by) {
-        OpenBitSet bits = andMatches(influenced_by);    // these are the AND of the hashes of datums that for which the ref objects are NNs.
-        List<Integer> matching_indices = Bloom.getSetBits(bits,bloom_width_bits);  // the indices into the linear bloom filter corresponding to set bits
+        QueryCache cache = query_cache;
+        QueryCache.Key key = null;
+        if( cache != null ) {
+            key = QueryCache.key(influenced_by);
+            Set<Integer> cached = cache.get(key);
+            if( cached != null ) {
+                return cached;
+            }
+        }
 
-        System.out.println( "Bits set in soln = " + matching_indices.size() + "(" +  ( matching_indices.size() * 100 / bits.size() ) +  "%)" );  // Debug/analysis
+        OpenBitSet bits = andMatches(influenced_by);    // these are the AND of the hashes of datums that for which the ref objects are NNs.
+        int bits_set = bits.cardinality();
 
-        // findIndicesDebug( bloom_map, matching_indices);
+        System.out.println( "Bits set in soln = " + bits_set + "(" +  ( bits_set * 100 / bits.size() ) +  "%)" );  // Debug/analysis
 
+        // findIndicesDebug( Bloom.getSetBitArray(bits) );
 
-        Set<Integer> results = hash.reverseHashes(matching_indices);  // a set of numbers (inc false +ves) that could give rise to the indices
-//        if( results.size() == 0 ) {
-//            System.out.println("Did not manage to reverse any hashes");
-//        } else {
-//            for (int i : results) {
-//                System.out.println("reversed = " + i + "\t" + pad(Integer.toBinaryString(i), size_of_balanced_representation) + " " + Util.check(pad(Integer.toBinaryString(i), size_of_balanced_representation), size_of_balanced_representation));
-//            }
-//        }
 
-        Set<Integer> filtered = BalanceGen.filter(results, size_of_balanced_representation); // filter out the non bit balanced hashes
-//        if( filtered.size() == 0 ) {
+        int[] filtered = decode(bits);  // bit balanced numbers (inc false +ves) that could give rise to the set bits, decoded in place
+//        if( filtered.length == 0 ) {
 //            System.out.println("Did find any legal solutions after filtering");
 //        } else {
 //            for (int i : filtered) {
 //                System.out.println("filtered = " + i + "\t" + pad(Integer.toBinaryString(i), size_of_balanced_representation) + " " + Util.check(pad(Integer.toBinaryString(i), size_of_balanced_representation), size_of_balanced_representation));
 //            }
 //        }
-        return filtered;
+        Set<Integer> result = toSet(filtered);
+        if( cache != null ) {
+            result = Collections.unmodifiableSet(result);
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * A lazy version of search: matching users are produced as soon as they are decoded, so callers that only need
+     * some of the results (e.g. via limit(n) or findFirst()) stop the decoding early.
+     * @param influenced_by - a set of influencers who influence query object
+     * @return a stream of the matching users who share similar influences
+     */
+    public IntStream searchStream(List<Integer> influenced_by) {
+        return hash.streamBalancedHashes( andMatches(influenced_by) );
+    }
+
+    /**
+     * @param influenced_by - a set of influencers who influence query object
+     * @param limit - the maximum number of results required
+     * @return at most limit of the matching users who share similar influences
+     */
+    public Set<Integer> search(List<Integer> influenced_by, int limit) {
+        return searchStream(influenced_by).limit(limit).boxed().collect(Collectors.toSet());
+    }
+
+    /**
+     * Answers many queries at once, equivalent to calling search on each but:
+     * identical queries (as sets of influencers) are answered once;
+     * the influencers of each query are ordered by how many queries they appear in and the queries merged into a trie,
+     * so the AND of a prefix shared by several queries is computed once and the ANDs below an empty one are skipped;
+     * and if pool is non null the subtrees of the trie, including the decoding of their queries, are processed in parallel.
+     * The prefixes are ANDed without decompressing COMPRESSED filters or copying MAPPED ones.
+     * Queries whose results are in the query cache are not searched.
+     * @param queries - lists of influencers who influence query objects
+     * @param pool - the pool in which to answer the queries, null to answer them sequentially
+     * @return the matching users for each query in the same order as queries - the sets are unmodifiable and shared by identical queries
+     */
+    public List<Set<Integer>> searchBatch(List<List<Integer>> queries, ForkJoinPool pool) {
+
+        QueryCache cache = query_cache;
+        BatchResults results = new BatchResults( queries.size() );
+
+        // Identical queries are answered once
+
+        Map<List<Integer>,List<Integer>> distinct = new HashMap<>();   // from a sorted query without duplicates to the indices of the queries equal to it
+        for( int i = 0; i < queries.size(); i++ ) {
+            if( queries.get(i).size() == 0 ) {
+                throw new RuntimeException( "Cannot search for an empty query in searchBatch: " + i );
+            }
+            List<Integer> canonical = new ArrayList<>( new TreeSet<>( queries.get(i) ) );
+            List<Integer> equal = distinct.get(canonical);
+            if( equal != null ) {
+                equal.add(i);
+            } else {
+                Set<Integer> cached = cache == null ? null : cache.get( QueryCache.key(canonical) );
+                if( cached != null ) {
+                    results.results.set(i, cached);
+                } else {
+                    equal = new ArrayList<>();
+                    equal.add(i);
+                    distinct.put( canonical, equal );
+                }
+            }
+        }
+
+        // Put the most frequent influencers first so that the queries share as long prefixes as possible
+
+        Map<Integer,Integer> frequency = new HashMap<>();
+        for( List<Integer> query : distinct.keySet() ) {
+            for( int ro : query ) {
+                frequency.merge( ro, 1, Integer::sum );
+            }
+        }
+        Comparator<Integer> most_frequent_first = Comparator.comparing( (Integer ro) -> frequency.get(ro) ).reversed().thenComparing( ro -> ro );
+
+        BatchNode root = new BatchNode(0);
+        for( Map.Entry<List<Integer>,List<Integer>> entry : distinct.entrySet() ) {
+            List<Integer> ordered = new ArrayList<>( entry.getKey() );
+            ordered.sort(most_frequent_first);
+            BatchNode node = root;
+            for( int ro : ordered ) {
+                node = node.children.computeIfAbsent( ro, BatchNode::new );
+            }
+            node.queries.addAll( entry.getValue() );
+        }
+
+        if( pool == null ) {
+            searchChildren(root, null, results, false);
+        } else {
+            pool.invoke( ForkJoinTask.adapt( () -> searchChildren(root, null, results, true) ) );
+        }
+
+        if( cache != null ) {
+            for( Map.Entry<List<Integer>,List<Integer>> entry : distinct.entrySet() ) {
+                cache.put( QueryCache.key(entry.getKey()), results.results.get( entry.getValue().get(0) ) );
+            }
+        }
+
+        batch_intersections.add( results.intersections.sum() );
+        batch_filters_queried.add( queries.stream().mapToLong(List::size).sum() );
+
+        List<Set<Integer>> answers = new ArrayList<>( queries.size() );
+        for( int i = 0; i < queries.size(); i++ ) {
+            answers.add( results.results.get(i) );
+        }
+        return answers;
+    }
+
+    /**
+     * A node of the trie of queries used by searchBatch - the path from the root to a node is a prefix of some queries.
+     */
+    private static class BatchNode {
+        private final int ro;                                           // the influencer added to the prefix by this node
+        private final Map<Integer,BatchNode> children = new HashMap<>();
+        private final List<Integer> queries = new ArrayList<>();        // the indices of the queries which end at this node
+
+        BatchNode(int ro) {
+            this.ro = ro;
+        }
+    }
+
+    private static class BatchResults {
+        private final AtomicReferenceArray<Set<Integer>> results;      // the result of each query, set by the tasks answering them
+        private final LongAdder intersections = new LongAdder();        // the number of bloom filters ANDed into a prefix
+
+        BatchResults(int size) {
+            this.results = new AtomicReferenceArray<>(size);
+        }
+    }
+
+    /**
+     * @return the number of bloom filters ANDed by searchBatch since this map was created - compare with batchFiltersQueried
+     */
+    public long batchIntersections() {
+        return batch_intersections.sum();
+    }
+
+    /**
+     * @return the total number of influencers in the queries given to searchBatch since this map was created, which is
+     * the number of bloom filters searching for each of them would have ANDed
+     */
+    public long batchFiltersQueried() {
+        return batch_filters_queried.sum();
+    }
+
+    /**
+     * The AND of the bloom filters of a prefix of the trie used by searchBatch, held compressed if storage is COMPRESSED
+     * so that the filters are never decompressed, otherwise as an OpenBitSet.
+     */
+    private static class Prefix {
+        private final OpenBitSet bits;                                  // null if storage is COMPRESSED
+        private final CompressedBitSet compressed;                      // null unless storage is COMPRESSED
+
+        Prefix(OpenBitSet bits, CompressedBitSet compressed) {
+            this.bits = bits;
+            this.compressed = compressed;
+        }
+
+        boolean isEmpty() {
+            return bits == null ? compressed.cardinality() == 0 : bits.isEmpty();
+        }
+    }
+
+    /**
+     * @param parent - the AND of the bloom filters of a prefix, null for the empty prefix
+     * @return the AND of parent and the bloom filter of ro - for MAPPED storage the filter is ANDed directly from the store
+     */
+    private Prefix andPrefix(Prefix parent, int ro) {
+        switch( storage ) {
+            case COMPRESSED:
+                return new Prefix( null, parent == null ? getCompressed(ro) : CompressedBitSet.and( parent.compressed, getCompressed(ro) ) );
+            case MAPPED:
+                return new Prefix( parent == null ? mapped_blooms.and(ro) : mapped_blooms.and( parent.bits, ro ), null );
+            default:
+                return new Prefix( parent == null ? getBits(ro) : OpenBitSet.andAll( parent.bits, getBits(ro) ), null );
+        }
+    }
+
+    /**
+     * Answers the queries in the subtree of the trie rooted at node.
+     * @param parent - the AND of the bloom filters of the prefix above node, null if node is a child of the root
+     */
+    private void searchNode(BatchNode node, Prefix parent, BatchResults results, boolean parallel) {
+        Prefix prefix = andPrefix(parent, node.ro);
+        results.intersections.increment();
+
+        if( prefix.isEmpty() ) {                                        // so is every AND below this node
+            setEmpty(node, results);
+            return;
+        }
+        if( ! node.queries.isEmpty() ) {
+            OpenBitSet bits = prefix.bits != null ? prefix.bits : prefix.compressed.toOpenBitSet( (int) bloom_width_bits );
+            Set<Integer> result = Collections.unmodifiableSet( toSet( hash.reverseBalancedHashes(bits) ) );
+            for( int query : node.queries ) {
+                results.results.set(query, result);
+            }
+        }
+        searchChildren(node, prefix, results, parallel);
+    }
+
+    private void searchChildren(BatchNode node, Prefix prefix, BatchResults results, boolean parallel) {
+        if( parallel ) {
+            List<ForkJoinTask<?>> tasks = new ArrayList<>();
+            for( BatchNode child : node.children.values() ) {
+                tasks.add( ForkJoinTask.adapt( () -> searchNode(child, prefix, results, true) ) );
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for( BatchNode child : node.children.values() ) {
+                searchNode(child, prefix, results, false);
+            }
+        }
+    }
+
+    private static void setEmpty(BatchNode node, BatchResults results) {
+        for( int query : node.queries ) {
+            results.results.set(query, Collections.emptySet());
+        }
+        for( BatchNode child : node.children.values() ) {
+            setEmpty(child, results);
+        }
+    }
+
+    /**
+     * A soft version of search: rather than the users influenced by every influencer in the query, finds those influenced by at
+     * least m of them in a single pass. The bits set in at least m of the bloom filters are found with OpenBitSet.atLeast and decoded,
+     * and each user decoded is counted in each filter which contains all of its hashes (those found in fewer than m are dropped).
+     * Since many more bits are set than in an AND, decoding is slower and gives more false positives the smaller m is.
+     * @param influenced_by - a set of influencers who influence query object
+     * @param m - the number of the (distinct) influencers which must match, from 1 to the number of distinct influencers
+     * @return the matching users, each mapped to the number of influencers which match it, in descending order of that number
+     */
+    public Map<Integer,Integer> searchAtLeast(List<Integer> influenced_by, int m) {
+        int[] query = influenced_by.stream().mapToInt(Integer::intValue).distinct().toArray();
+        if( m < 1 || m > query.length ) {
+            throw new RuntimeException( "Cannot match at least " + m + " of " + query.length + " influencers" );
+        }
+        OpenBitSet[] blooms = new OpenBitSet[query.length];
+        for( int i = 0; i < query.length; i++ ) {
+            blooms[i] = getBits(query[i]);
+        }
+        OpenBitSet bits = OpenBitSet.atLeast(m, blooms);
+        at_least_bits_set.add( bits.cardinality() );
+
+        int[] candidates = decode(bits);
+        int[] counts = new int[candidates.length];
+        for( int c = 0; c < candidates.length; c++ ) {
+            List<Integer> hashes = hash.hash( candidates[c] );
+            for( OpenBitSet bloom : blooms ) {
+                boolean contains_all = true;
+                for( int i = 0; i < hashes.size() && contains_all; i++ ) {
+                    contains_all = bloom.get( hashes.get(i) );
+                }
+                if( contains_all ) {
+                    counts[c]++;
+                }
+            }
+        }
+
+        List<Integer> ranked = new ArrayList<>();
+        for( int c = 0; c < candidates.length; c++ ) {
+            if( counts[c] >= m ) {
+                ranked.add(c);
+            }
+        }
+        ranked.sort( Comparator.comparing( (Integer c) -> counts[c] ).reversed().thenComparing( c -> candidates[c] ) );
+        Map<Integer,Integer> result = new LinkedHashMap<>(ranked.size() * 2);
+        for( int c : ranked ) {
+            result.put( candidates[c], counts[c] );
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bits set in at least m of the bloom filters of the queries given to searchAtLeast since this map was
+     * created - the bits decoded, which grows as m falls
+     */
+    public long atLeastBitsSet() {
+        return at_least_bits_set.sum();
+    }
+
+    private int[] decode(OpenBitSet bits) {
+        if( decode_pool == null ) {
+            return hash.reverseBalancedHashes(bits);
+        } else {
+            return hash.reverseBalancedHashes(bits, decode_pool, decode_parallelism_threshold);
+        }
+    }
+
+    private static Set<Integer> toSet(int[] numbers) {
+        Set<Integer> result = new HashSet<>(numbers.length * 2);
+        for( int number : numbers ) {
+            result.add(number);
+        }
+        return result;
+    }
+
+    /**
+     * @param id - an identifier returned by search
+     * @return true if id is one of the data objects (some search results are not legal ids)
+     */
+    public boolean isData(int id) {
+        int rank = BalanceGen.rank(id, size_of_balanced_representation);
+        return rank >= 0 && data_ranks.get(rank);
+    }
+
+    /**
+     * @param ro - a reference object
+     * @return the bloom filter of the followers of ro
+     */
+    private Bloom getBloom(int ro) {
+        Bloom bloom = bloom_map[rankOf(ro)];
+        if( bloom == null ) {
+            throw new RuntimeException( "No bloom filter for reference object " + ro );
+        }
+        return bloom;
+    }
+
+    /**
+     * @param ro - a reference object
+     * @return the counting bloom filter of the followers of ro
+     */
+    private CountingBloom getCounting(int ro) {
+        CountingBloom counting = counting_map[rankOf(ro)];
+        if( counting == null ) {
+            throw new RuntimeException( "No bloom filter for reference object " + ro );
+        }
+        return counting;
+    }
+
+    /**
+     * @param ro - a reference object
+     * @return the compressed bloom filter of the followers of ro
+     */
+    private CompressedBitSet getCompressed(int ro) {
+        CompressedBitSet bits = compressed_map[rankOf(ro)];
+        if( bits == null ) {
+            throw new RuntimeException( "No bloom filter for reference object " + ro );
+        }
+        return bits;
+    }
+
+    /**
+     * @param ro - a reference object
+     * @return the bits of the bloom filter of the followers of ro (a new bit set unless storage is DENSE or COUNTING), not to be modified
+     */
+    OpenBitSet getBits(int ro) {
+        switch( storage ) {
+            case DENSE:
+                return getBloom(ro).getBits();
+            case COUNTING:
+                return getCounting(ro).getBits();
+            case COMPRESSED:
+                return getCompressed(ro).toOpenBitSet( (int) bloom_width_bits );
+            default:
+                return mapped_blooms.and(ro);
+        }
+    }
+
+    /**
+     * @param ro - a reference object
+     * @return the number of bits set in the bloom filter of ro
+     */
+    private int cardinalityOf(int ro) {
+        return cardinalities[rankOf(ro)];
+    }
+
+    /**
+     * @param query - some reference objects
+     * @return the reference objects in the order in which their filters should be ANDed, without any saturated filters
+     */
+    private int[] plan(int[] query) {
+        int[] counts = new int[query.length];
+        for( int i = 0; i < query.length; i++ ) {
+            counts[i] = cardinalityOf(query[i]);
+        }
+        int[] order = planner.plan(counts, bloom_width_bits);
+        int[] result = new int[order.length];
+        for( int i = 0; i < order.length; i++ ) {
+            result[i] = query[order[i]];
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of bytes of heap used by the bloom filters (approximately for COMPRESSED storage, 0 for MAPPED)
+     */
+    public long bloomSizeInBytes() {
+        long result = 0;
+        for( int ro : refs ) {
+            if( storage == BloomStorage.DENSE ) {
+                result += getBloom(ro).getBits().size() / 8;
+            } else if( storage == BloomStorage.COMPRESSED ) {
+                result += getCompressed(ro).sizeInBytes();
+            } else if( storage == BloomStorage.COUNTING ) {
+                result += getCounting(ro).sizeInBytes();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the bloom filters of the reference objects to a file which may be opened with MappedBloomStore.open and used by useMappedBlooms.
+     * @param file - the file to be written
+     * @throws IOException if the file cannot be written
+     */
+    public void saveBlooms(Path file) throws IOException {
+        MappedBloomStore.write( file, refs.stream().mapToInt(Integer::intValue).toArray(), this::getBits, (int) bloom_width_bits );
+    }
+
+    /**
+     * Makes search use bloom filters held in a memory mapped store (written by saveBlooms) and releases those on the heap.
+     * Any pair cache is disabled (and its background refresh stopped) since pairs are only cached with DENSE or COUNTING storage.
+     * @param store - a store containing a bloom filter of the followers of each reference object keyed by reference object
+     */
+    public void useMappedBlooms(MappedBloomStore store) {
+        if( store.widthInBits() < bloom_width_bits || store.widthInBits() >= bloom_width_bits + Long.SIZE ) {
+            throw new RuntimeException( "Store holds bloom filters of width " + store.widthInBits() + " but this map uses " + bloom_width_bits );
+        }
+        for( int ro : refs ) {
+            if( ! store.contains(ro) ) {
+                throw new RuntimeException( "No bloom filter in store for reference object " + ro );
+            }
+        }
+        disablePairCache();
+        this.mapped_blooms = store;
+        this.storage = BloomStorage.MAPPED;
+        if( bloom_map != null ) {
+            Arrays.fill(bloom_map, null);
+        }
+        if( compressed_map != null ) {
+            Arrays.fill(compressed_map, null);
+        }
+        if( counting_map != null ) {
+            Arrays.fill(counting_map, null);
+        }
+    }
+
+    /**
+     * Records that follower now follows ro by adding the hashes of follower to the bloom filter of ro, rather than rebuilding the map.
+     * Only supported if storage is COUNTING. Not safe to call concurrently with other updates or searches.
+     * @param ro - a reference object
+     * @param follower - a data object
+     */
+    public void addFollower(int ro, int follower) {
+        CountingBloom counting = getUpdatableBloom(ro, follower);
+        for( int hash : hash.hash(follower) ) {
+            counting.addhash(hash);
+        }
+        cardinalities[rankOf(ro)] = counting.cardinality();
+        invalidate(ro);
+    }
+
+    /**
+     * Records that follower no longer follows ro by removing the hashes of follower from the bloom filter of ro, rather than rebuilding the map.
+     * Only supported if storage is COUNTING. Not safe to call concurrently with other updates or searches.
+     * @param ro - a reference object
+     * @param follower - a data object which follows ro, either when the map was built or by addFollower
+     */
+    public void removeFollower(int ro, int follower) {
+        CountingBloom counting = getUpdatableBloom(ro, follower);
+        List<Integer> hashes = hash.hash(follower);
+        for( int hash : hashes ) {
+            if( counting.count(hash) == 0 ) {                           // check first so that a failed removal leaves the filter unchanged
+                throw new RuntimeException( "Data object " + follower + " does not follow reference object " + ro );
+            }
+        }
+        for( int hash : hashes ) {
+            counting.removehash(hash);
+        }
+        cardinalities[rankOf(ro)] = counting.cardinality();
+        invalidate(ro);
+    }
+
+    /**
+     * Removes anything cached which depends on the bloom filter of ro.
+     */
+    private void invalidate(int ro) {
+        if( query_cache != null ) {
+            query_cache.invalidate(ro);
+        }
+        if( pair_cache != null ) {
+            pair_cache.invalidate(ro);
+        }
+    }
+
+    private CountingBloom getUpdatableBloom(int ro, int follower) {
+        if( storage != BloomStorage.COUNTING ) {
+            throw new RuntimeException( "Followers can only be added and removed with COUNTING bloom storage, not " + storage );
+        }
+        if( ! isData(follower) ) {
+            throw new RuntimeException( "Not a data object: " + follower );
+        }
+        return getCounting(ro);
+    }
+
+    private int rankOf(int id) {
+        int rank = BalanceGen.rank(id, size_of_balanced_representation);
+        if( rank < 0 ) {
+            throw new RuntimeException( "Not a balanced identifier of length " + size_of_balanced_representation + ": " + id );
+        }
+        return rank;
     }
 
     /**
      * Check to see if matches are correct!
-     * @param bloom_map
      * @param matching_indices
      */
-    private void findIndicesDebug(Map<Integer, Bloom> bloom_map, List<Integer> matching_indices) {
+    private void findIndicesDebug(int[] matching_indices) {
         for( int match : matching_indices ) {
-            for( Map.Entry<Integer,Bloom> entry : bloom_map.entrySet() ) {
-                OpenBitSet bits = entry.getValue().getBits();
-                if( bits.get(match) ) {
-                    System.out.println( "Match for index " + match + " key = " + entry.getKey() );
+            for( int ro : refs ) {
+                if( getBits(ro).get(match) ) {
+                    System.out.println( "Match for index " + match + " key = " + ro );
                 }
 
             }
@@ -105,45 +816,166 @@ public class RecommenderMap {
 
         if( influenced_by.size() == 0 ) {
             throw new RuntimeException( "Cannot get iterator over pivots in andMatches" );
-        } else if( influenced_by.size() == 1 ) {
-            return bloom_map.get(influenced_by.get(0)).getBitsCopy();
-        } else {
-            OpenBitSet bits = bloom_map.get(influenced_by.get(0)).getBitsCopy();
-            for( int i = 1; i < influenced_by.size(); i++ ) {
-                OpenBitSet next_bits = bloom_map.get(influenced_by.get(i)).getBits();
-                bits.and(next_bits);
+        }
+        int[] query = influenced_by.stream().mapToInt(Integer::intValue).distinct().toArray();
+        if( storage == BloomStorage.COMPRESSED ) {
+            int[] planned = plan(query);
+            CompressedBitSet[] compressed = new CompressedBitSet[planned.length];
+            for( int i = 0; i < compressed.length; i++ ) {
+                compressed[i] = getCompressed(planned[i]);
+            }
+            return CompressedBitSet.and(compressed).toOpenBitSet( (int) bloom_width_bits );
+        }
+        if( storage == BloomStorage.MAPPED ) {
+            return mapped_blooms.and( plan(query) );                    // sparsest first so each word is abandoned as soon as possible
+        }
+        List<OpenBitSet> blooms = new ArrayList<>();                    // DENSE or COUNTING, neither is copied
+        List<Integer> counts = new ArrayList<>();
+        PairIntersectionCache pairs = pair_cache;
+        PairIntersectionCache.Pair best = null;
+        if( pairs != null ) {
+            pairs.record(query);
+            best = pairs.best(query);
+            if( best != null ) {                                        // AND the rest of the filters into the pair
+                blooms.add(best.bits);
+                counts.add(best.cardinality);
+            }
+        }
+        for( int ro : query ) {
+            if( best == null || ( ro != best.a && ro != best.b ) ) {
+                blooms.add( getBits(ro) );
+                counts.add( cardinalityOf(ro) );
             }
-            return bits;
         }
+        return planner.and( blooms.toArray(new OpenBitSet[0]), counts.stream().mapToInt(Integer::intValue).toArray(), bloom_width_bits );
     }
 
-    private void initialiseNNMap(double bloom_width_bits, int hash_size_in_bits, int hash_overlap) {
+    /**
+     * Builds the bloom filters of the reference objects, in parallel in build_pool if it is non null.
+     * The filter of each reference object depends only on its own followers so the result is the same either way.
+     */
+    private void initialiseNNMap(double bloom_width_bits, int hash_size_in_bits, int hash_overlap, ForkJoinPool build_pool) {
 
-        boolean first = true;
+        BuildProgress progress = new BuildProgress( refs.size() );
 
-        for( int ro : refs ) {
+        if( build_pool == null ) {
+            for( int index = 0; index < refs.size(); index++ ) {
+                buildBloom(index, progress);
+            }
+        } else {
+            int threshold = Math.max( 1, refs.size() / ( build_pool.getParallelism() * BUILD_TASKS_PER_THREAD ) );
+            build_pool.invoke( new BuildTask(0, refs.size(), threshold, progress) );
+        }
+
+        progress.report();
+    }
 
-            List<Integer> influenced_by = followers.getFollowers(ro);
+    /**
+     * Builds the bloom filter of refs[index] and stores it in bloom_map, compressed_map or counting_map.
+     */
+    private void buildBloom(int index, BuildProgress progress) {
 
-            Bloom bloom = new Bloom( bloom_width_bits );
+        long start = System.nanoTime();
 
-            for( int follower : influenced_by ) {
-                List<Integer> hashes = hash.hash( follower );
-                for( int hash : hashes ) {
+        int ro = refs.get(index);
+        int[] influenced_by = followers.getFollowerArray(ro);
+
+        Bloom bloom = storage == BloomStorage.COUNTING ? null : new Bloom( bloom_width_bits );
+        CountingBloom counting = storage == BloomStorage.COUNTING ? new CountingBloom( bloom_width_bits ) : null;
+
+        for( int follower : influenced_by ) {
+            List<Integer> hashes = hash.hash( follower );
+            for( int hash : hashes ) {
+                if( counting == null ) {
                     bloom.addhash(hash);
+                } else {
+                    counting.addhash(hash);
                 }
             }
-             OpenBitSet bits = bloom.getBits();                                  // Debug/analysis
-             List<Integer> set_bits = Bloom.getSetBits(bits,bloom_width_bits);  // Debug/analysis
-             if( first ) {
-                 System.out.println( "Bits set = " + set_bits.size() + "(" +  ( set_bits.size() * 100 / bits.size() ) +  "%)" );  // Debug/analysis
-                 first = false;
-             }
+        }
+        if( index == 0 ) {
+            OpenBitSet bits = counting == null ? bloom.getBits() : counting.getBits();   // Debug/analysis
+            List<Integer> set_bits = Bloom.getSetBits(bits,bloom_width_bits);  // Debug/analysis
+            System.out.println( "Bits set = " + set_bits.size() + "(" +  ( set_bits.size() * 100 / bits.size() ) +  "%)" );  // Debug/analysis
+        }
 
-            //showDists(ro, ol);
-            //showBloom( bloom );
-            bloom_map.put(ro,bloom);
+        long hashed = System.nanoTime();
 
+        //showDists(ro, ol);
+        //showBloom( bloom );
+        cardinalities[rankOf(ro)] = counting == null ? bloom.getBits().cardinality() : counting.cardinality();
+        if( storage == BloomStorage.DENSE ) {
+            bloom_map[rankOf(ro)] = bloom;
+        } else if( storage == BloomStorage.COUNTING ) {
+            counting_map[rankOf(ro)] = counting;
+        } else {
+            compressed_map[rankOf(ro)] = CompressedBitSet.valueOf( bloom.getBits() ); // the dense filter is discarded
         }
+
+        progress.built( hashed - start, System.nanoTime() - hashed );
+    }
+
+    /**
+     * Builds the bloom filters of refs[from..to), splitting the range until it is no bigger than the threshold.
+     */
+    private class BuildTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+        private final int threshold;
+        private final BuildProgress progress;
+
+        BuildTask(int from, int to, int threshold, BuildProgress progress) {
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+            this.progress = progress;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= threshold ) {
+                for( int index = from; index < to; index++ ) {
+                    buildBloom(index, progress);
+                }
+            } else {
+                int mid = (from + to) >>> 1;
+                invokeAll( new BuildTask(from, mid, threshold, progress), new BuildTask(mid, to, threshold, progress) );
+            }
+        }
+    }
+
+    /**
+     * Counts the bloom filters built, printing progress every tenth of the total, and the time spent in each phase
+     * of the build summed over all threads.
+     */
+    private class BuildProgress {
+        private final int total;
+        private final long start = System.nanoTime();
+        private final AtomicInteger built = new AtomicInteger();
+        private final LongAdder hashing_nanos = new LongAdder();       // hashing the followers into the filters
+        private final LongAdder storing_nanos = new LongAdder();       // compressing (if COMPRESSED) and storing the filters
+
+        BuildProgress(int total) {
+            this.total = total;
+        }
+
+        void built(long hashing, long storing) {
+            hashing_nanos.add(hashing);
+            storing_nanos.add(storing);
+            int count = built.incrementAndGet();
+            if( count * 10L / total != ( count - 1 ) * 10L / total ) {
+                System.out.println( "Built " + count + "/" + total + " bloom filters in " + millisSince(start) + "ms" );
+            }
+        }
+
+        void report() {
+            System.out.println( "Build of " + total + " " + storage + " bloom filters took " + millisSince(start) + "ms elapsed: hashing " +
+                                hashing_nanos.sum() / 1000000 + "ms storing " + storing_nanos.sum() / 1000000 + "ms (summed over threads)" );
+        }
+    }
+
+    private static long millisSince(long start) {
+        return ( System.nanoTime() - start ) / 1000000;
     }
 }
@@ -0,0 +1,216 @@
+package uk.al_richard.BloomSearch;
+
+import uk.al_richard.BloomSearch.RecommenderMap.BloomStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Checks that search gives the same results whatever the bloom storage of a RecommenderMap - DENSE, COMPRESSED and
+ * COUNTING, and DENSE and COUNTING maps switched to MAPPED storage by saveBlooms and useMappedBlooms - and that for each
+ * of them searchBatch gives the same results as search, sequentially and in parallel.
+ * Also checks that building the bloom filters in a pool gives the same filters as building them sequentially.
+ */
+public class RecommenderMapStorageTest {
+
+    private static final int POPULATION = 20000;
+    private static final int NUMBER_OF_REFS = 200;
+    private static final int FOLLOWERS_PER_REF = 2000;
+    private static final int HASH_LENGTH_IN_BITS = 16;
+    private static final int HASH_OVERLAP = 1;
+    private static final int NUM_HASHES = 8;
+    private static final int REFS_PER_QUERY = 2;
+    private static final int NUMBER_OF_QUERIES = 50;
+    private static final int EMPTY_PREFIX_LENGTH = 24;                  // enough bloom filters that their AND is empty
+    private static final int QUERIES_SHARING_EMPTY_PREFIX = 10;
+
+    private static final ForkJoinPool pool = new ForkJoinPool(4);
+
+    public static void main(String[] args) throws IOException {
+
+        Iterator<Integer> generator = BalanceGen.getIterator(POPULATION);
+        List<Integer> all = new ArrayList<>();
+        while( generator.hasNext() ) {
+            all.add( generator.next() );
+        }
+        Collections.shuffle( all, new Random(7) );
+        List<Integer> refs = new ArrayList<>( all.subList(0, NUMBER_OF_REFS) );
+        List<Integer> dat = new ArrayList<>( all.subList(NUMBER_OF_REFS, all.size()) );
+        int balanced_rep_size = BalanceGen.numberBitsInBalancedRep(POPULATION);
+        Followers followers = new Followers(refs, dat, FOLLOWERS_PER_REF);
+
+        Random rand = new Random(11);
+        List<List<Integer>> queries = new ArrayList<>();
+        for( int q = 0; q < NUMBER_OF_QUERIES; q++ ) {
+            queries.add( randomQuery(rand, refs, REFS_PER_QUERY) );
+        }
+        List<List<Integer>> batch = batchQueries(rand, refs, queries);
+        List<List<Integer>> empty_prefix_batch = emptyPrefixQueries(refs);
+
+        RecommenderMap dense = build(refs, dat, followers, balanced_rep_size, BloomStorage.DENSE);
+        List<Set<Integer>> expected = searchAll(dense, queries);
+
+        Map<String,RecommenderMap> maps = new LinkedHashMap<>();
+        maps.put( "DENSE", dense );
+        for( BloomStorage storage : new BloomStorage[]{ BloomStorage.COMPRESSED, BloomStorage.COUNTING } ) {
+            maps.put( storage.toString(), build(refs, dat, followers, balanced_rep_size, storage) );
+        }
+        for( BloomStorage storage : new BloomStorage[]{ BloomStorage.DENSE, BloomStorage.COUNTING } ) {
+            RecommenderMap map = build(refs, dat, followers, balanced_rep_size, storage);
+            Path file = Files.createTempFile("blooms", ".bin");
+            file.toFile().deleteOnExit();
+            map.saveBlooms(file);
+            map.useMappedBlooms( MappedBloomStore.open(file) );
+            maps.put( storage + "->MAPPED", map );
+        }
+
+        boolean error = false;
+        for( BloomStorage storage : new BloomStorage[]{ BloomStorage.DENSE, BloomStorage.COMPRESSED, BloomStorage.COUNTING } ) {
+            RecommenderMap sequential = storage == BloomStorage.DENSE ? dense : maps.get( storage.toString() );
+            RecommenderMap parallel = new RecommenderMap( refs, dat, followers, Math.pow(2, HASH_LENGTH_IN_BITS), HASH_LENGTH_IN_BITS, HASH_OVERLAP, NUM_HASHES,
+                                                          balanced_rep_size, REFS_PER_QUERY, FOLLOWERS_PER_REF, storage, pool );
+            error |= ! checkParallelBuild( storage.toString(), sequential, parallel, refs );
+            error |= ! check( storage + " built in a pool", searchAll(parallel, queries), searchAll(sequential, queries), "built sequentially" );
+        }
+        for( Map.Entry<String,RecommenderMap> entry : maps.entrySet() ) {
+            String name = entry.getKey();
+            RecommenderMap map = entry.getValue();
+            error |= ! check( name, searchAll(map, queries), expected, "DENSE" );
+            error |= ! checkBatch( name, map, batch );
+            error |= ! checkEmptyPrefix( name, map, empty_prefix_batch );
+        }
+        pool.shutdown();
+
+        if( error ) {
+            throw new RuntimeException( "Search results differ between bloom storage modes or between search and searchBatch" );
+        }
+        System.out.println( "Search results the same for all bloom storage modes" );
+    }
+
+    private static RecommenderMap build(List<Integer> refs, List<Integer> dat, Followers followers, int balanced_rep_size, BloomStorage storage) {
+        return new RecommenderMap( refs, dat, followers, Math.pow(2, HASH_LENGTH_IN_BITS), HASH_LENGTH_IN_BITS, HASH_OVERLAP, NUM_HASHES,
+                                   balanced_rep_size, REFS_PER_QUERY, FOLLOWERS_PER_REF, storage );
+    }
+
+    /**
+     * @return true if every bloom filter of parallel, built in a pool, is the same as that of sequential
+     */
+    private static boolean checkParallelBuild(String name, RecommenderMap sequential, RecommenderMap parallel, List<Integer> refs) {
+        boolean same = true;
+        for( int ro : refs ) {
+            if( ! parallel.getBits(ro).equals( sequential.getBits(ro) ) ) {
+                System.out.println( "Error " + name + " bloom filter of " + ro + " differs when built in a pool" );
+                same = false;
+            }
+        }
+        System.out.println( name + " bloom filters built in a pool " + ( same ? "match" : "differ from" ) + " those built sequentially" );
+        return same;
+    }
+
+    private static List<Integer> randomQuery(Random rand, List<Integer> refs, int size) {
+        List<Integer> query = new ArrayList<>();
+        for( int i = 0; i < size; i++ ) {
+            query.add( refs.get( rand.nextInt(refs.size()) ) );
+        }
+        return query;
+    }
+
+    /**
+     * @return queries for searchBatch: queries, some of them extended by another influencer so that they share prefixes,
+     * permutations and exact duplicates of some of those, and a query with a duplicated influencer
+     */
+    private static List<List<Integer>> batchQueries(Random rand, List<Integer> refs, List<List<Integer>> queries) {
+        List<List<Integer>> batch = new ArrayList<>(queries);
+        for( int q = 0; q < 20; q++ ) {
+            List<Integer> extended = new ArrayList<>( queries.get(q) );
+            extended.add( refs.get( rand.nextInt(refs.size()) ) );
+            batch.add(extended);
+            if( q < 10 ) {
+                List<Integer> permuted = new ArrayList<>(extended);
+                Collections.reverse(permuted);
+                batch.add(permuted);
+                batch.add( new ArrayList<>( queries.get(q) ) );
+            }
+        }
+        batch.add( Arrays.asList( refs.get(0), refs.get(1), refs.get(0) ) );
+        Collections.shuffle( batch, rand );
+        return batch;
+    }
+
+    /**
+     * @return queries which share a prefix of EMPTY_PREFIX_LENGTH influencers, whose AND is empty, each followed by a different influencer
+     */
+    private static List<List<Integer>> emptyPrefixQueries(List<Integer> refs) {
+        List<List<Integer>> batch = new ArrayList<>();
+        for( int q = 0; q < QUERIES_SHARING_EMPTY_PREFIX; q++ ) {
+            List<Integer> query = new ArrayList<>( refs.subList(0, EMPTY_PREFIX_LENGTH) );
+            query.add( refs.get( EMPTY_PREFIX_LENGTH + q ) );
+            batch.add(query);
+        }
+        return batch;
+    }
+
+    private static List<Set<Integer>> searchAll(RecommenderMap map, List<List<Integer>> queries) {
+        List<Set<Integer>> results = new ArrayList<>();
+        for( List<Integer> query : queries ) {
+            results.add( new TreeSet<>( map.search(query) ) );
+        }
+        return results;
+    }
+
+    /**
+     * Checks searchBatch against search, sequentially and in parallel, and with the results of a first batch in the query cache.
+     * @return true if the results are the same
+     */
+    private static boolean checkBatch(String name, RecommenderMap map, List<List<Integer>> batch) {
+        List<Set<Integer>> expected = searchAll(map, batch);
+        boolean same = check( name + " searchBatch", map.searchBatch(batch, null), expected, "search" );
+        same &= check( name + " parallel searchBatch", map.searchBatch(batch, pool), expected, "search" );
+
+        QueryCache cache = new QueryCache( 1 << 22 );
+        map.setQueryCache(cache);
+        same &= check( name + " searchBatch filling the cache", map.searchBatch(batch, null), expected, "search" );
+        same &= check( name + " parallel searchBatch from the cache", map.searchBatch(batch, pool), expected, "search" );
+        map.setQueryCache(null);
+        if( cache.hits() == 0 ) {
+            System.out.println( "Error " + name + " searchBatch found no results in the query cache" );
+            same = false;
+        }
+        return same;
+    }
+
+    /**
+     * Checks that searchBatch skips the ANDs below a prefix whose AND is empty, and still gives the same results as search.
+     * @return true if it does
+     */
+    private static boolean checkEmptyPrefix(String name, RecommenderMap map, List<List<Integer>> batch) {
+        List<Set<Integer>> expected = searchAll(map, batch);
+        long before = map.batchIntersections();
+        boolean same = check( name + " searchBatch with an empty prefix", map.searchBatch(batch, null), expected, "search" );
+        long intersections = map.batchIntersections() - before;
+        if( intersections >= EMPTY_PREFIX_LENGTH + batch.size() ) {               // the number of nodes in the trie
+            System.out.println( "Error " + name + " searchBatch ANDed " + intersections + " filters below an empty prefix" );
+            same = false;
+        }
+        same &= check( name + " parallel searchBatch with an empty prefix", map.searchBatch(batch, pool), expected, "search" );
+        return same;
+    }
+
+    /**
+     * @return true if results are the same as expected, printing the queries whose results differ
+     */
+    private static boolean check(String name, List<Set<Integer>> results, List<Set<Integer>> expected, String expected_name) {
+        boolean same = true;
+        for( int q = 0; q < expected.size(); q++ ) {
+            if( ! results.get(q).equals( expected.get(q) ) ) {
+                System.out.println( "Error " + name + " query " + q + " found " + results.get(q).size() + " results, " + expected_name + " found " + expected.get(q).size() );
+                same = false;
+            }
+        }
+        System.out.println( name + ( same ? " matches " : " differs from " ) + expected_name );
+        return same;
+    }
+}
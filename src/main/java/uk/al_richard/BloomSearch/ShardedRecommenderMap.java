@@ -0,0 +1,193 @@
+package uk.al_richard.BloomSearch;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ *  A RecommenderMap split into shards: the data is partitioned into num_shards sub-populations and each shard is a
+ *  RecommenderMap over the reference objects and its own data with its own balanced identifiers, bloom filters and hash.
+ *  Each shard's filters only hold its share of the followers so they stay sparse and cheap to decode.
+ *  Queries are performed on every shard in parallel and the results merged.
+ */
+public class ShardedRecommenderMap {
+
+    private final Map<Integer,Integer> ref_indices = new HashMap<>();  // Maps from a reference object to its index in refs
+    private final int[] dat;                                            // The data objects in ascending order
+    private final RecommenderMap[] shards;
+    private final int[][] local_refs;                                   // local_refs[s][i] is the identifier of refs[i] in shard s
+    private final int[][] global_ids;                                   // global_ids[s][rank] is the data object whose identifier in shard s has that rank
+    private final int[] shard_bits;                                     // the length of the identifiers in each shard
+    private final ForkJoinPool query_pool;
+
+    /**
+     * @param refs - the reference objects
+     * @param dat - the data objects
+     * @param followers - the data objects following each reference object
+     * @param num_shards - the number of shards into which the data is partitioned
+     * @param bloom_width_bits - the width of the bloom filters of each shard
+     * @param hash_length_in_bits - the parameters of the CircularHash of each shard
+     * @param hash_overlap
+     * @param num_hashes
+     * @param reference_objects_per_query - see RecommenderMap
+     * @param no_referrers_per_object - see RecommenderMap
+     * @param storage - how the bloom filters of the shards are held
+     * @param pool - the pool in which the shards are built and queried, null to build and query them sequentially
+     */
+    public ShardedRecommenderMap(List<Integer> refs, List<Integer> dat, Followers followers, int num_shards, double bloom_width_bits, int hash_length_in_bits, int hash_overlap, int num_hashes, int reference_objects_per_query, int no_referrers_per_object, RecommenderMap.BloomStorage storage, ForkJoinPool pool) {
+
+        if( num_shards < 1 ) {
+            throw new RuntimeException( "At least one shard is required: " + num_shards );
+        }
+        for( int i = 0; i < refs.size(); i++ ) {
+            ref_indices.put( refs.get(i), i );
+        }
+        this.dat = dat.stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(this.dat);
+        this.query_pool = pool;
+
+        this.shards = new RecommenderMap[num_shards];
+        this.local_refs = new int[num_shards][];
+        this.global_ids = new int[num_shards][];
+        this.shard_bits = new int[num_shards];
+
+        // Deal the data out to the shards
+
+        List<List<Integer>> shard_dat = new ArrayList<>();
+        for( int s = 0; s < num_shards; s++ ) {
+            shard_dat.add( new ArrayList<>() );
+        }
+        Map<Integer,Integer> shard_of = new HashMap<>();
+        for( int i = 0; i < dat.size(); i++ ) {
+            shard_dat.get( i % num_shards ).add( dat.get(i) );
+            shard_of.put( dat.get(i), i % num_shards );
+        }
+
+        // Give each shard its own identifiers and followers, translated into those identifiers
+
+        for( int s = 0; s < num_shards; s++ ) {
+            List<Integer> shard_data = shard_dat.get(s);
+            int bits = identifierLength( refs.size() + shard_data.size(), hash_length_in_bits, hash_overlap, num_hashes );
+            shard_bits[s] = bits;
+            global_ids[s] = new int[ (int) BalanceGen.numberOfBalanced(bits) ];
+            local_refs[s] = new int[refs.size()];
+
+            int rank = 0;                                               // the identifiers are allocated in rank order
+            List<Integer> shard_refs = new ArrayList<>();
+            for( int i = 0; i < refs.size(); i++ ) {
+                local_refs[s][i] = BalanceGen.unrank(rank++, bits);
+                shard_refs.add( local_refs[s][i] );
+            }
+            Map<Integer,Integer> local_id = new HashMap<>();
+            List<Integer> local_dat = new ArrayList<>();
+            for( int datum : shard_data ) {
+                global_ids[s][rank] = datum;
+                int id = BalanceGen.unrank(rank++, bits);
+                local_id.put( datum, id );
+                local_dat.add( id );
+            }
+
+            Map<Integer,List<Integer>> local_followers = new HashMap<>();
+            for( int i = 0; i < refs.size(); i++ ) {
+                List<Integer> local = new ArrayList<>();
+                for( int follower : followers.getFollowerArray( refs.get(i) ) ) {
+                    Integer shard = shard_of.get(follower);
+                    if( shard != null && shard == s ) {
+                        local.add( local_id.get(follower) );
+                    }
+                }
+                local_followers.put( local_refs[s][i], local );
+            }
+
+            shards[s] = new RecommenderMap( shard_refs, local_dat, new Followers(shard_refs, local_dat, local_followers), bloom_width_bits, hash_length_in_bits, hash_overlap, num_hashes, bits, reference_objects_per_query, no_referrers_per_object, storage, pool );
+        }
+    }
+
+    /**
+     * @param influenced_by - a set of influencers who influence query object
+     * @return the data objects who share similar influences (unlike RecommenderMap.search the false positives which are not data are removed)
+     */
+    public Set<Integer> search(List<Integer> influenced_by) {
+        List<Callable<int[]>> tasks = new ArrayList<>();
+        for( int s = 0; s < shards.length; s++ ) {
+            final int shard = s;
+            tasks.add( () -> searchShard(shard, influenced_by) );
+        }
+
+        Set<Integer> result = new HashSet<>();
+        if( query_pool == null ) {
+            for( int s = 0; s < shards.length; s++ ) {
+                for( int id : searchShard(s, influenced_by) ) {
+                    result.add(id);
+                }
+            }
+            return result;
+        }
+        try {
+            for( Future<int[]> shard_result : query_pool.invokeAll(tasks) ) {
+                for( int id : shard_result.get() ) {
+                    result.add(id);
+                }
+            }
+        } catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException( "Interrupted during sharded search", e );
+        } catch( ExecutionException e ) {
+            throw new RuntimeException( "Sharded search failed", e.getCause() );
+        }
+        return result;
+    }
+
+    /**
+     * @param id - a data object
+     * @return true if id is one of the data objects
+     */
+    public boolean isData(int id) {
+        return Arrays.binarySearch(dat, id) >= 0;
+    }
+
+    /**
+     * @return the number of shards
+     */
+    public int numberOfShards() {
+        return shards.length;
+    }
+
+    /**
+     * @return the data objects in shard s which match influenced_by
+     */
+    private int[] searchShard(int s, List<Integer> influenced_by) {
+        List<Integer> local_query = new ArrayList<>();
+        for( int ro : influenced_by ) {
+            Integer index = ref_indices.get(ro);
+            if( index == null ) {
+                throw new RuntimeException( "No bloom filter for reference object " + ro );
+            }
+            local_query.add( local_refs[s][index] );
+        }
+        Set<Integer> local_results = shards[s].search(local_query);
+
+        int[] result = new int[local_results.size()];
+        int size = 0;
+        for( int local : local_results ) {
+            if( shards[s].isData(local) ) {
+                result[size++] = global_ids[s][ BalanceGen.rank(local, shard_bits[s]) ];
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * @return the length of the identifiers needed for population objects, at least long enough to be hashed
+     */
+    private static int identifierLength(int population, int hash_length_in_bits, int hash_overlap, int num_hashes) {
+        int bits = BalanceGen.numberBitsInBalancedRep(population);
+        int required = Math.max( hash_length_in_bits, hash_overlap * num_hashes );
+        while( bits < required ) {
+            bits += 2;
+        }
+        return bits;
+    }
+}
@@ -0,0 +1,268 @@
+package uk.al_richard.BloomSearch;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * The binary format used by the save and load methods of the maps (big endian):
+ *   int magic (identifies the kind of map), int version, the fields written by the map, long CRC32 of everything before it.
+ * Arrays are written as an int length followed by the elements and are moved through a large buffer in bulk.
+ * The checksum is checked when a snapshot is opened, before any of its fields are read, so a map is never built from a corrupt file.
+ */
+class SnapshotIO {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    static class Writer implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Creates file and writes the header.
+         */
+        Writer(Path file, int magic, int version) throws IOException {
+            this.channel = FileChannel.open( file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING );
+            writeInt(magic);
+            writeInt(version);
+        }
+
+        void writeInt(int value) throws IOException {
+            ensureSpace(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void writeLong(long value) throws IOException {
+            ensureSpace(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void writeDouble(double value) throws IOException {
+            writeLong( Double.doubleToLongBits(value) );
+        }
+
+        void writeInts(int[] values) throws IOException {
+            writeInt(values.length);
+            int written = 0;
+            while( written < values.length ) {
+                ensureSpace(Integer.BYTES);
+                int count = Math.min( values.length - written, buffer.remaining() / Integer.BYTES );
+                buffer.asIntBuffer().put(values, written, count);
+                buffer.position( buffer.position() + count * Integer.BYTES );
+                written += count;
+            }
+        }
+
+        /**
+         * Writes the first length elements of values
+         */
+        void writeLongs(long[] values, int length) throws IOException {
+            writeInt(length);
+            int written = 0;
+            while( written < length ) {
+                ensureSpace(Long.BYTES);
+                int count = Math.min( length - written, buffer.remaining() / Long.BYTES );
+                buffer.asLongBuffer().put(values, written, count);
+                buffer.position( buffer.position() + count * Long.BYTES );
+                written += count;
+            }
+        }
+
+        /**
+         * Writes the checksum and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+                buffer.putLong( crc.getValue() );
+                buffer.flip();
+                while( buffer.hasRemaining() ) {
+                    channel.write(buffer);
+                }
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void ensureSpace(int bytes) throws IOException {
+            if( buffer.remaining() < bytes ) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            crc.update( buffer.duplicate() );
+            while( buffer.hasRemaining() ) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    static class Reader implements Closeable {
+
+        private final Path file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private final long data_size;                                   // the size of the file excluding the checksum
+        private long read = 0;                                          // the number of bytes of the file read into the buffer
+
+        /**
+         * Opens file and checks its checksum and header.
+         * @param version - the newest version that can be read
+         * @return the reader, positioned after the header
+         */
+        Reader(Path file, int magic, int version) throws IOException {
+            this.file = file;
+            this.channel = FileChannel.open( file, StandardOpenOption.READ );
+            this.data_size = channel.size() - Long.BYTES;
+            buffer.limit(0);
+            try {
+                if( data_size < 2 * Integer.BYTES ) {
+                    throw new IOException( "Not a snapshot of the expected kind: " + file );
+                }
+                checkChecksum();
+                if( readInt() != magic ) {
+                    throw new IOException( "Not a snapshot of the expected kind: " + file );
+                }
+                int found = readInt();
+                if( found < 1 || found > version ) {
+                    throw new IOException( "Unsupported snapshot version " + found + " in " + file );
+                }
+            } catch( IOException e ) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        int readInt() throws IOException {
+            ensureAvailable(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        long readLong() throws IOException {
+            ensureAvailable(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        double readDouble() throws IOException {
+            return Double.longBitsToDouble( readLong() );
+        }
+
+        int[] readInts() throws IOException {
+            int[] result = new int[ readLength(Integer.BYTES) ];
+            int done = 0;
+            while( done < result.length ) {
+                ensureAvailable(Integer.BYTES);
+                int count = Math.min( result.length - done, buffer.remaining() / Integer.BYTES );
+                buffer.asIntBuffer().get(result, done, count);
+                buffer.position( buffer.position() + count * Integer.BYTES );
+                done += count;
+            }
+            return result;
+        }
+
+        /**
+         * Reads an array written by writeLongs into the start of into, which must be long enough
+         * @return the number of elements read
+         */
+        int readLongs(long[] into) throws IOException {
+            int length = readLength(Long.BYTES);
+            if( length > into.length ) {
+                throw new IOException( "Corrupt snapshot, array of " + length + " longs where at most " + into.length + " expected: " + file );
+            }
+            int done = 0;
+            while( done < length ) {
+                ensureAvailable(Long.BYTES);
+                int count = Math.min( length - done, buffer.remaining() / Long.BYTES );
+                buffer.asLongBuffer().get(into, done, count);
+                buffer.position( buffer.position() + count * Long.BYTES );
+                done += count;
+            }
+            return length;
+        }
+
+        /**
+         * Checks that all of the data has been read, and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                if( buffer.hasRemaining() || read != data_size ) {
+                    throw new IOException( "Unexpected data at the end of snapshot " + file );
+                }
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Checks the CRC32 of the data against the checksum at the end of the file, using the buffer.
+         */
+        private void checkChecksum() throws IOException {
+            CRC32 crc = new CRC32();
+            long position = 0;
+            while( position < data_size ) {
+                buffer.clear();
+                buffer.limit( (int) Math.min( buffer.capacity(), data_size - position ) );
+                int count = channel.read(buffer, position);
+                if( count < 0 ) {
+                    throw new IOException( "Snapshot is truncated: " + file );
+                }
+                buffer.flip();
+                crc.update(buffer);
+                position += count;
+            }
+            buffer.clear();
+            buffer.limit(Long.BYTES);
+            while( buffer.hasRemaining() ) {
+                if( channel.read(buffer, data_size + buffer.position()) < 0 ) {
+                    throw new IOException( "Snapshot is truncated: " + file );
+                }
+            }
+            if( buffer.getLong(0) != crc.getValue() ) {
+                throw new IOException( "Snapshot checksum does not match, the file is corrupt: " + file );
+            }
+            buffer.clear();
+            buffer.limit(0);
+        }
+
+        private int readLength(int element_bytes) throws IOException {
+            int length = readInt();
+            if( length < 0 || (long) length * element_bytes > data_size - read + buffer.remaining() ) {
+                throw new IOException( "Corrupt snapshot, bad array length " + length + ": " + file );
+            }
+            return length;
+        }
+
+        private void ensureAvailable(int bytes) throws IOException {
+            if( buffer.remaining() >= bytes ) {
+                return;
+            }
+            buffer.compact();
+            while( buffer.position() < bytes ) {
+                int limit = (int) Math.min( buffer.capacity(), buffer.position() + data_size - read );
+                if( limit <= buffer.position() ) {
+                    throw new IOException( "Snapshot is truncated: " + file );
+                }
+                ByteBuffer fresh = buffer.duplicate();
+                fresh.limit(limit);
+                int count = channel.read(fresh, read);
+                if( count < 0 ) {
+                    throw new IOException( "Snapshot is truncated: " + file );
+                }
+                buffer.position( buffer.position() + count );
+                read += count;
+            }
+            buffer.flip();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package uk.al_richard.BloomSearch;
+
+import dataPoints.cartesian.CartesianPoint;
+import dataPoints.cartesian.Euclidean;
+import uk.al_richard.BloomSearch.RecommenderMap.BloomStorage;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Checks that RecommenderMap and MetricNNMap snapshots written by save are read back by load as maps which give the
+ * same search results, and that load rejects snapshots which are corrupt, truncated or of the wrong kind of map.
+ */
+public class SnapshotTest {
+
+    private static final int POPULATION = 20000;
+    private static final int NUMBER_OF_REFS = 200;
+    private static final int FOLLOWERS_PER_REF = 2000;
+    private static final int HASH_LENGTH_IN_BITS = 16;
+    private static final int HASH_OVERLAP = 1;
+    private static final int NUM_HASHES = 8;
+    private static final int REFS_PER_QUERY = 2;
+    private static final int NUMBER_OF_QUERIES = 20;
+
+    private static int errors = 0;
+
+    public static void main(String[] args) throws IOException {
+
+        Iterator<Integer> generator = BalanceGen.getIterator(POPULATION);
+        List<Integer> all = new ArrayList<>();
+        while( generator.hasNext() ) {
+            all.add( generator.next() );
+        }
+        Collections.shuffle( all, new Random(7) );
+        List<Integer> refs = new ArrayList<>( all.subList(0, NUMBER_OF_REFS) );
+        List<Integer> dat = new ArrayList<>( all.subList(NUMBER_OF_REFS, all.size()) );
+        int balanced_rep_size = BalanceGen.numberBitsInBalancedRep(POPULATION);
+        Followers followers = new Followers(refs, dat, FOLLOWERS_PER_REF);
+
+        for( BloomStorage storage : new BloomStorage[]{ BloomStorage.DENSE, BloomStorage.COMPRESSED, BloomStorage.COUNTING } ) {
+            RecommenderMap map = new RecommenderMap( refs, dat, followers, Math.pow(2, HASH_LENGTH_IN_BITS), HASH_LENGTH_IN_BITS, HASH_OVERLAP, NUM_HASHES,
+                                                     balanced_rep_size, REFS_PER_QUERY, FOLLOWERS_PER_REF, storage );
+            Path file = tempFile();
+            map.save(file);
+            RecommenderMap loaded = RecommenderMap.load(file);
+
+            Random rand = new Random(11);
+            for( int q = 0; q < NUMBER_OF_QUERIES; q++ ) {
+                List<Integer> query = new ArrayList<>();
+                for( int i = 0; i < REFS_PER_QUERY; i++ ) {
+                    query.add( refs.get( rand.nextInt(NUMBER_OF_REFS) ) );
+                }
+                Set<Integer> results = map.search(query);
+                if( ! results.equals( loaded.search(query) ) ) {
+                    error( storage + " search results differ after load for query " + query );
+                }
+                for( int result : results ) {
+                    if( map.isData(result) != loaded.isData(result) ) {
+                        error( storage + " isData(" + result + ") differs after load" );
+                    }
+                }
+            }
+            checkRejected( storage.toString(), file, RecommenderMap::load );
+        }
+
+        Random rand = new Random(3);
+        List<CartesianPoint> pivots = randomPoints(rand, 50);
+        List<CartesianPoint> points = randomPoints(rand, 2000);
+        Euclidean<CartesianPoint> metric = new Euclidean<>();
+        MetricNNMap metric_map = new MetricNNMap( pivots, points, metric, 100, Math.pow(2, 10), 10, 2,
+                                                  BalanceGen.numberBitsInBalancedRep( pivots.size() + points.size() ), 3 );
+        Path file = tempFile();
+        metric_map.save(file);
+        MetricNNMap loaded = MetricNNMap.load(file, pivots, points, metric);
+        for( CartesianPoint query : randomPoints(rand, 5) ) {
+            if( ! metric_map.search(query, 5).equals( loaded.search(query, 5) ) ) {
+                error( "MetricNNMap search results differ after load" );
+            }
+        }
+        try {
+            RecommenderMap.load(file);
+            error( "MetricNNMap snapshot loaded as a RecommenderMap" );
+        } catch( IOException e ) {
+            System.out.println( "Wrong kind of snapshot rejected: " + e.getMessage() );
+        }
+        checkRejected( "MetricNNMap", file, f -> MetricNNMap.load(f, pivots, points, metric) );
+
+        if( errors == 0 ) {
+            System.out.println( "Snapshots all loaded correctly" );
+        } else {
+            throw new RuntimeException( errors + " errors in snapshots" );
+        }
+    }
+
+    private interface Loader {
+        Object load(Path file) throws IOException;
+    }
+
+    /**
+     * Checks that loader throws an IOException when a byte of the snapshot in file is flipped and when it is truncated.
+     */
+    private static void checkRejected(String name, Path file, Loader loader) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] corrupt = bytes.clone();
+        corrupt[corrupt.length / 2] ^= 1;
+        Files.write(file, corrupt);
+        try {
+            loader.load(file);
+            error( name + " corrupt snapshot loaded" );
+        } catch( IOException e ) {
+            System.out.println( name + " corrupt snapshot rejected: " + e.getMessage() );
+        }
+        Files.write( file, Arrays.copyOf( bytes, bytes.length - 100 ) );
+        try {
+            loader.load(file);
+            error( name + " truncated snapshot loaded" );
+        } catch( IOException e ) {
+            System.out.println( name + " truncated snapshot rejected: " + e.getMessage() );
+        }
+    }
+
+    private static List<CartesianPoint> randomPoints(Random rand, int number) {
+        List<CartesianPoint> result = new ArrayList<>();
+        for( int i = 0; i < number; i++ ) {
+            result.add( new CartesianPoint( new double[]{ rand.nextDouble(), rand.nextDouble() } ) );
+        }
+        return result;
+    }
+
+    private static Path tempFile() throws IOException {
+        Path file = Files.createTempFile("snapshot", ".bin");
+        file.toFile().deleteOnExit();
+        return file;
+    }
+
+    private static void error(String message) {
+        System.out.println( "Error " + message );
+        errors++;
+    }
+}
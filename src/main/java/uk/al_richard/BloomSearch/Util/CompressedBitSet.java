@@ -0,0 +1,536 @@
+package uk.al_richard.BloomSearch.Util;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * An immutable compressed bit set in the style of Roaring bitmaps.
+ * The bits are split into chunks of 2^16 and each non empty chunk is held in whichever is smallest of
+ * an array container (the sorted low 16 bits of each set bit), a bitmap container (1024 words) or
+ * a run container (the starts and lengths of the runs of set bits).
+ * Sparse bit sets therefore cost a few bytes per set bit and ANDing them only visits the chunks present in all of them.
+ */
+public class CompressedBitSet {
+
+    private static final int CHUNK_BITS = 16;
+    private static final int CHUNK_MASK = ( 1 << CHUNK_BITS ) - 1;
+    private static final int WORDS_PER_CHUNK = ( 1 << CHUNK_BITS ) / Long.SIZE;
+    private static final int MAX_ARRAY_SIZE = 4096;                     // beyond this a bitmap container is smaller than an array container
+
+    private final char[] keys;                                          // the high 16 bits of the bits in each chunk in ascending order
+    private final Container[] containers;                               // containers[i] holds the low 16 bits of the bits in chunk keys[i]
+
+    private CompressedBitSet(char[] keys, Container[] containers) {
+        this.keys = keys;
+        this.containers = containers;
+    }
+
+    /**
+     * @param bits - the bit set to be compressed
+     * @return a compressed bit set with the same bits set as bits
+     */
+    public static CompressedBitSet valueOf(OpenBitSet bits) {
+        long[] words = bits.getBits();
+        int words_in_use = ( bits.length() + Long.SIZE - 1 ) / Long.SIZE;
+        int num_chunks = ( words_in_use + WORDS_PER_CHUNK - 1 ) / WORDS_PER_CHUNK;
+
+        char[] keys = new char[num_chunks];
+        Container[] containers = new Container[num_chunks];
+        int size = 0;
+        for( int chunk = 0; chunk < num_chunks; chunk++ ) {
+            long[] chunk_words = new long[WORDS_PER_CHUNK];
+            int from = chunk * WORDS_PER_CHUNK;
+            System.arraycopy(words, from, chunk_words, 0, Math.min(WORDS_PER_CHUNK, words_in_use - from));
+            Container container = fromWords(chunk_words);
+            if( container != null ) {
+                keys[size] = (char) chunk;
+                containers[size++] = container;
+            }
+        }
+        return new CompressedBitSet( Arrays.copyOf(keys, size), Arrays.copyOf(containers, size) );
+    }
+
+    /**
+     * The AND of any number of compressed bit sets. The sets are intersected sparsest first and a chunk is
+     * abandoned as soon as its intersection is empty.
+     * @param sets - the bit sets to be ANDed (at least one)
+     * @return a new compressed bit set which is the AND of sets
+     */
+    public static CompressedBitSet and(CompressedBitSet... sets) {
+        if( sets.length == 0 ) {
+            throw new RuntimeException( "At least one bit set is required" );
+        }
+        CompressedBitSet[] ordered = sets.clone();
+        Arrays.sort( ordered, (a, b) -> Long.compare( a.cardinality(), b.cardinality() ) );
+
+        CompressedBitSet first = ordered[0];
+        char[] keys = new char[first.keys.length];
+        Container[] containers = new Container[first.keys.length];
+        int[] positions = new int[ordered.length];                     // a cursor into the keys of each of the other sets
+        int size = 0;
+
+        for( int i = 0; i < first.keys.length; i++ ) {
+            char key = first.keys[i];
+            Container container = first.containers[i];
+            for( int k = 1; k < ordered.length && container != null; k++ ) {
+                CompressedBitSet other = ordered[k];
+                int position = advance(other.keys, positions[k], key);
+                positions[k] = position;
+                if( position < other.keys.length && other.keys[position] == key ) {
+                    container = container.and( other.containers[position] );
+                } else {
+                    container = null;
+                }
+            }
+            if( container != null ) {
+                keys[size] = key;
+                containers[size++] = container;
+            }
+        }
+        return new CompressedBitSet( Arrays.copyOf(keys, size), Arrays.copyOf(containers, size) );
+    }
+
+    /**
+     * @param nbits - the size of the bit set required (e.g. the width of a Bloom filter)
+     * @return an OpenBitSet with the same bits set as this
+     */
+    public OpenBitSet toOpenBitSet(int nbits) {
+        OpenBitSet result = new OpenBitSet(nbits);
+        for( int i = 0; i < keys.length; i++ ) {
+            containers[i].setIn( result, keys[i] << CHUNK_BITS );
+        }
+        return result;
+    }
+
+    /**
+     * @param bitIndex - a bit index
+     * @return true if bitIndex is set
+     */
+    public boolean get(int bitIndex) {
+        int i = Arrays.binarySearch( keys, (char) ( bitIndex >>> CHUNK_BITS ) );
+        return i >= 0 && containers[i].contains( bitIndex & CHUNK_MASK );
+    }
+
+    /**
+     * @param fromIndex - the index to start checking from (inclusive)
+     * @return the index of the next set bit, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        int i = advance( keys, 0, (char) ( fromIndex >>> CHUNK_BITS ) );
+        if( i < keys.length && keys[i] == fromIndex >>> CHUNK_BITS ) {
+            int low = containers[i].nextSetBit( fromIndex & CHUNK_MASK );
+            if( low >= 0 ) {
+                return ( keys[i] << CHUNK_BITS ) | low;
+            }
+            i++;
+        }
+        return i < keys.length ? ( keys[i] << CHUNK_BITS ) | containers[i].nextSetBit(0) : -1;
+    }
+
+    /**
+     * @return an iterator over the set bits in ascending order
+     */
+    public PrimitiveIterator.OfInt iterator() {
+        return new PrimitiveIterator.OfInt() {
+            private int next = nextSetBit(0);
+
+            @Override
+            public boolean hasNext() {
+                return next >= 0;
+            }
+
+            @Override
+            public int nextInt() {
+                if( next < 0 ) {
+                    throw new NoSuchElementException();
+                }
+                int result = next;
+                next = result == Integer.MAX_VALUE ? -1 : nextSetBit(result + 1);
+                return result;
+            }
+        };
+    }
+
+    /**
+     * @return the number of set bits
+     */
+    public long cardinality() {
+        long result = 0;
+        for( Container container : containers ) {
+            result += container.cardinality();
+        }
+        return result;
+    }
+
+    /**
+     * @return the approximate number of bytes used by the containers
+     */
+    public long sizeInBytes() {
+        long result = keys.length * 2L;
+        for( Container container : containers ) {
+            result += container.sizeInBytes();
+        }
+        return result;
+    }
+
+    /**
+     * @return the first index of keys at or after from which is not less than key (keys.length if there is none)
+     */
+    private static int advance(char[] keys, int from, char key) {
+        int low = from;
+        int high = keys.length;
+        while( low < high ) {
+            int mid = ( low + high ) >>> 1;
+            if( keys[mid] < key ) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @param words - the 1024 words of a chunk
+     * @return the smallest container holding the bits set in words, null if there are none
+     */
+    private static Container fromWords(long[] words) {
+        int cardinality = 0;
+        int runs = 0;
+        long previous_top = 0;                                          // the top bit of the previous word
+        for( long word : words ) {
+            cardinality += Long.bitCount(word);
+            runs += Long.bitCount( word & ~( ( word << 1 ) | previous_top ) ); // bits which start a run
+            previous_top = word >>> ( Long.SIZE - 1 );
+        }
+        if( cardinality == 0 ) {
+            return null;
+        }
+        if( runs * RunContainer.BYTES_PER_RUN < Math.min( cardinality * ArrayContainer.BYTES_PER_VALUE, BitmapContainer.BYTES ) ) {
+            return RunContainer.fromWords(words, runs);
+        }
+        if( cardinality <= MAX_ARRAY_SIZE ) {
+            return ArrayContainer.fromWords(words, cardinality);
+        }
+        return new BitmapContainer(words, cardinality);
+    }
+
+    /**
+     * The low 16 bits of the set bits in a chunk.
+     */
+    private static abstract class Container {
+
+        abstract int cardinality();
+
+        abstract int sizeInBytes();
+
+        abstract boolean contains(int low);
+
+        /**
+         * @return the next set bit at or after low, -1 if there is none
+         */
+        abstract int nextSetBit(int low);
+
+        /**
+         * @return the AND of this and other, null if it is empty
+         */
+        abstract Container and(Container other);
+
+        /**
+         * ORs the bits of this container into the words of a chunk
+         */
+        abstract void orInto(long[] words);
+
+        /**
+         * Sets the bits of this container in bits, offset by base
+         */
+        void setIn(OpenBitSet bits, int base) {
+            for( int low = nextSetBit(0); low >= 0; low = low == CHUNK_MASK ? -1 : nextSetBit(low + 1) ) {
+                bits.set( base + low );
+            }
+        }
+
+        long[] toWords() {
+            long[] words = new long[WORDS_PER_CHUNK];
+            orInto(words);
+            return words;
+        }
+    }
+
+    private static class ArrayContainer extends Container {
+        static final int BYTES_PER_VALUE = 2;
+
+        private final char[] values;                                    // ascending
+
+        ArrayContainer(char[] values) {
+            this.values = values;
+        }
+
+        static ArrayContainer fromWords(long[] words, int cardinality) {
+            char[] values = new char[cardinality];
+            int size = 0;
+            for( int i = 0; i < words.length; i++ ) {
+                long word = words[i];
+                while( word != 0 ) {
+                    values[size++] = (char) ( i * Long.SIZE + Long.numberOfTrailingZeros(word) );
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        int cardinality() {
+            return values.length;
+        }
+
+        @Override
+        int sizeInBytes() {
+            return values.length * BYTES_PER_VALUE;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return Arrays.binarySearch( values, (char) low ) >= 0;
+        }
+
+        @Override
+        int nextSetBit(int low) {
+            int i = advance( values, 0, (char) low );
+            return i < values.length ? values[i] : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            char[] result = new char[values.length];
+            int size = 0;
+            if( other instanceof ArrayContainer ) {                     // merge the two sorted arrays
+                char[] others = ( (ArrayContainer) other ).values;
+                int j = 0;
+                for( int i = 0; i < values.length && j < others.length; i++ ) {
+                    j = advance( others, j, values[i] );
+                    if( j < others.length && others[j] == values[i] ) {
+                        result[size++] = values[i];
+                    }
+                }
+            } else {
+                for( char value : values ) {
+                    if( other.contains(value) ) {
+                        result[size++] = value;
+                    }
+                }
+            }
+            return size == 0 ? null : new ArrayContainer( Arrays.copyOf(result, size) );
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for( char value : values ) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        void setIn(OpenBitSet bits, int base) {
+            for( char value : values ) {
+                bits.set( base + value );
+            }
+        }
+    }
+
+    private static class BitmapContainer extends Container {
+        static final int BYTES = WORDS_PER_CHUNK * Long.BYTES;
+
+        private final long[] words;
+        private final int cardinality;
+
+        BitmapContainer(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int sizeInBytes() {
+            return BYTES;
+        }
+
+        @Override
+        boolean contains(int low) {
+            return ( words[low >>> 6] & ( 1L << low ) ) != 0;
+        }
+
+        @Override
+        int nextSetBit(int low) {
+            int i = low >>> 6;
+            long word = words[i] & ( -1L << low );
+            while( true ) {
+                if( word != 0 ) {
+                    return i * Long.SIZE + Long.numberOfTrailingZeros(word);
+                }
+                if( ++i == words.length ) {
+                    return -1;
+                }
+                word = words[i];
+            }
+        }
+
+        @Override
+        Container and(Container other) {
+            if( other instanceof ArrayContainer ) {
+                return other.and(this);
+            }
+            long[] others = other instanceof BitmapContainer ? ( (BitmapContainer) other ).words : other.toWords();
+            long[] result = new long[WORDS_PER_CHUNK];
+            for( int i = 0; i < WORDS_PER_CHUNK; i++ ) {
+                result[i] = words[i] & others[i];
+            }
+            return fromWords(result);
+        }
+
+        @Override
+        void orInto(long[] target) {
+            for( int i = 0; i < WORDS_PER_CHUNK; i++ ) {
+                target[i] |= words[i];
+            }
+        }
+    }
+
+    private static class RunContainer extends Container {
+        static final int BYTES_PER_RUN = 4;
+
+        private final char[] starts;                                    // ascending
+        private final char[] lengths;                                   // the run from starts[i] covers lengths[i] + 1 bits
+        private final int cardinality;
+
+        RunContainer(char[] starts, char[] lengths) {
+            this.starts = starts;
+            this.lengths = lengths;
+            int sum = starts.length;
+            for( char length : lengths ) {
+                sum += length;
+            }
+            this.cardinality = sum;
+        }
+
+        static RunContainer fromWords(long[] words, int runs) {
+            char[] starts = new char[runs];
+            char[] lengths = new char[runs];
+            int size = 0;
+            int start = -1;
+            for( int bit = 0; bit < WORDS_PER_CHUNK * Long.SIZE; bit++ ) {
+                boolean set = ( words[bit >>> 6] & ( 1L << bit ) ) != 0;
+                if( set && start < 0 ) {
+                    start = bit;
+                } else if( !set && start >= 0 ) {
+                    starts[size] = (char) start;
+                    lengths[size++] = (char) ( bit - 1 - start );
+                    start = -1;
+                }
+            }
+            if( start >= 0 ) {
+                starts[size] = (char) start;
+                lengths[size] = (char) ( CHUNK_MASK - start );
+            }
+            return new RunContainer(starts, lengths);
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int sizeInBytes() {
+            return starts.length * BYTES_PER_RUN;
+        }
+
+        /**
+         * @return the index of the run containing low, or of the first run after it
+         */
+        private int runFor(int low) {
+            int i = advance( starts, 0, (char) low );
+            if( i < starts.length && starts[i] == low ) {
+                return i;
+            }
+            return i > 0 && low <= starts[i - 1] + lengths[i - 1] ? i - 1 : i;
+        }
+
+        @Override
+        boolean contains(int low) {
+            int i = runFor(low);
+            return i < starts.length && starts[i] <= low;
+        }
+
+        @Override
+        int nextSetBit(int low) {
+            int i = runFor(low);
+            return i < starts.length ? Math.max( starts[i], low ) : -1;
+        }
+
+        @Override
+        Container and(Container other) {
+            if( other instanceof ArrayContainer ) {
+                return other.and(this);
+            }
+            if( other instanceof BitmapContainer ) {
+                return other.and(this);
+            }
+            RunContainer runs = (RunContainer) other;                   // intersect the two lists of intervals
+            char[] result_starts = new char[starts.length + runs.starts.length];
+            char[] result_lengths = new char[result_starts.length];
+            int size = 0;
+            int i = 0;
+            int j = 0;
+            while( i < starts.length && j < runs.starts.length ) {
+                int end = starts[i] + lengths[i];
+                int other_end = runs.starts[j] + runs.lengths[j];
+                int start = Math.max( starts[i], runs.starts[j] );
+                int finish = Math.min( end, other_end );
+                if( start <= finish ) {
+                    result_starts[size] = (char) start;
+                    result_lengths[size++] = (char) ( finish - start );
+                }
+                if( end < other_end ) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return size == 0 ? null : new RunContainer( Arrays.copyOf(result_starts, size), Arrays.copyOf(result_lengths, size) );
+        }
+
+        @Override
+        void orInto(long[] words) {
+            for( int i = 0; i < starts.length; i++ ) {
+                int from = starts[i];
+                int to = from + lengths[i] + 1;                         // exclusive
+                int first_word = from >>> 6;
+                int last_word = ( to - 1 ) >>> 6;
+                long first_mask = -1L << from;
+                long last_mask = -1L >>> -to;
+                if( first_word == last_word ) {
+                    words[first_word] |= first_mask & last_mask;
+                } else {
+                    words[first_word] |= first_mask;
+                    for( int w = first_word + 1; w < last_word; w++ ) {
+                        words[w] = -1L;
+                    }
+                    words[last_word] |= last_mask;
+                }
+            }
+        }
+
+        @Override
+        void setIn(OpenBitSet bits, int base) {
+            for( int i = 0; i < starts.length; i++ ) {
+                bits.set( base + starts[i], base + starts[i] + lengths[i] + 1 );
+            }
+        }
+    }
+}
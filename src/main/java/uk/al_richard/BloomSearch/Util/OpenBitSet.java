@@ -1250,6 +1250,15 @@ public class OpenBitSet implements Cloneable, java.io.Serializable {
 //            words = bits;
 //        }
 
+    /**
+     * Must be called after the words returned by getBits() have been written directly.
+     */
+    public void wordsUpdated() {
+        wordsInUse = words.length;
+        recalculateWordsInUse();
+        checkInvariants();
+    }
+
     /**
      * @param i which long in the underlying datastructure is being selected
      * @return the ith long in the datastructure
@@ -1262,4 +1271,169 @@ public class OpenBitSet implements Cloneable, java.io.Serializable {
 
     }
 
+    /**
+     * The AND of any number of bit sets in a single pass over their words - unlike clone() followed by pairwise and()
+     * nothing is copied first and a word is abandoned as soon as it becomes zero.
+     * @param sets - the bit sets to be ANDed (at least one)
+     * @return a new bit set which is the AND of sets, with the same size as sets[0]
+     */
+    public static OpenBitSet andAll(OpenBitSet... sets) {
+        long[] result_words = new long[sets[0].words.length];
+        OpenBitSet result = new OpenBitSet();
+        result.words = result_words;
+        result.wordsInUse = andAll(result_words, sets);
+        result.sizeIsSticky = true;
+        result.checkInvariants();
+        return result;
+    }
+
+    /**
+     * As andAll(OpenBitSet...) but the words of the result are written to a caller supplied buffer.
+     * @param result - the buffer into which the words of the AND are written, at least as long as the words in use by any of sets
+     * @param sets - the bit sets to be ANDed (at least one)
+     * @return the number of words at the start of result which hold the AND - the last of them is non zero
+     */
+    public static int andAll(long[] result, OpenBitSet... sets) {
+        int words_in_use = minWordsInUse(sets);
+        int last_non_zero = -1;
+        for (int i = 0; i < words_in_use; i++) {
+            long word = sets[0].words[i];
+            for (int k = 1; k < sets.length && word != 0; k++) {
+                word &= sets[k].words[i];
+            }
+            result[i] = word;
+            if (word != 0) {
+                last_non_zero = i;
+            }
+        }
+        return last_non_zero + 1;
+    }
+
+    /**
+     * As andAll(OpenBitSet...) but the AND replaces the bits of result and the bits left set are counted in the same pass,
+     * so a caller which needs the cardinality of the AND (e.g. to stop once it is empty) does not make a second pass over it.
+     * @param result - the bit set into which the AND is written, which may be one of sets (e.g. andAllCardinality(r, r, s) is r.and(s))
+     * @param sets - the bit sets to be ANDed (at least one)
+     * @return the number of bits set in result
+     */
+    public static int andAllCardinality(OpenBitSet result, OpenBitSet... sets) {
+        int words_in_use = minWordsInUse(sets);
+        result.ensureCapacity(words_in_use);
+        int cardinality = 0;
+        int last_non_zero = -1;
+        for (int i = 0; i < words_in_use; i++) {
+            long word = sets[0].words[i];
+            for (int k = 1; k < sets.length && word != 0; k++) {
+                word &= sets[k].words[i];
+            }
+            result.words[i] = word;
+            if (word != 0) {
+                cardinality += Long.bitCount(word);
+                last_non_zero = i;
+            }
+        }
+        for (int i = words_in_use; i < result.wordsInUse; i++) {
+            result.words[i] = 0;
+        }
+        result.wordsInUse = last_non_zero + 1;
+        result.checkInvariants();
+        return cardinality;
+    }
+
+    /**
+     * The indices of the set bits in the AND of any number of bit sets, extracted in the same pass as the AND
+     * (see andAll(OpenBitSet...)) so no intermediate bit set is built. With a single set this lists its set bits.
+     * @param sets - the bit sets to be ANDed (at least one)
+     * @return the indices of the set bits in the AND of sets in ascending order
+     */
+    public static int[] andAllSetBits(OpenBitSet... sets) {
+        int words_in_use = minWordsInUse(sets);
+        int[] result = new int[64];
+        int size = 0;
+        for (int i = 0; i < words_in_use; i++) {
+            long word = sets[0].words[i];
+            for (int k = 1; k < sets.length && word != 0; k++) {
+                word &= sets[k].words[i];
+            }
+            if (word != 0) {
+                if (size + Long.bitCount(word) > result.length) {
+                    result = Arrays.copyOf(result, Math.max(result.length * 2, size + BITS_PER_WORD));
+                }
+                int base = i * BITS_PER_WORD;
+                while (word != 0) {
+                    result[size++] = base + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                }
+            }
+        }
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * The bits which are set in at least m of some bit sets - a soft AND which is andAll(OpenBitSet...) when m is the number of sets.
+     * Each word is processed in parallel: the number of sets containing each bit is kept in bit sliced counters
+     * (plane p holds bit p of the 64 counts) which are added to with a ripple carry, and compared with m a plane at a time.
+     * @param m - the number of sets in which a bit must be set, from 1 to the number of sets
+     * @param sets - the bit sets (at least one)
+     * @return a new bit set whose bits are set in at least m of sets, with the same size as sets[0]
+     */
+    public static OpenBitSet atLeast(int m, OpenBitSet... sets) {
+        if (sets.length == 0) {
+            throw new RuntimeException("At least one bit set is required");
+        }
+        if (m < 1 || m > sets.length) {
+            throw new RuntimeException("Cannot find the bits in at least " + m + " of " + sets.length + " bit sets");
+        }
+        int words_in_use = 0;
+        for (OpenBitSet set : sets) {
+            words_in_use = Math.max(words_in_use, set.wordsInUse);
+        }
+        long[] planes = new long[Integer.SIZE - Integer.numberOfLeadingZeros(sets.length)];  // enough to count to sets.length
+        long[] result_words = new long[Math.max(sets[0].words.length, words_in_use)];
+        int last_non_zero = -1;
+        for (int i = 0; i < words_in_use; i++) {
+            Arrays.fill(planes, 0);
+            for (OpenBitSet set : sets) {
+                long carry = i < set.wordsInUse ? set.words[i] : 0;
+                for (int p = 0; carry != 0; p++) {
+                    long next_carry = planes[p] & carry;
+                    planes[p] ^= carry;
+                    carry = next_carry;
+                }
+            }
+            long greater = 0;                                   // counts whose top planes so far are greater than those of m
+            long equal = -1L;                                   // counts whose top planes so far equal those of m
+            for (int p = planes.length - 1; p >= 0; p--) {
+                if (((m >>> p) & 1) != 0) {
+                    equal &= planes[p];
+                } else {
+                    greater |= equal & planes[p];
+                    equal &= ~planes[p];
+                }
+            }
+            long word = greater | equal;
+            result_words[i] = word;
+            if (word != 0) {
+                last_non_zero = i;
+            }
+        }
+        OpenBitSet result = new OpenBitSet();
+        result.words = result_words;
+        result.wordsInUse = last_non_zero + 1;
+        result.sizeIsSticky = true;
+        result.checkInvariants();
+        return result;
+    }
+
+    private static int minWordsInUse(OpenBitSet[] sets) {
+        if (sets.length == 0) {
+            throw new RuntimeException("At least one bit set is required");
+        }
+        int words_in_use = sets[0].wordsInUse;
+        for (int k = 1; k < sets.length; k++) {
+            words_in_use = Math.min(words_in_use, sets[k].wordsInUse);
+        }
+        return words_in_use;
+    }
+
 }